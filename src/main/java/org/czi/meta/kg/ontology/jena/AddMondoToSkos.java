@@ -2,15 +2,8 @@ package org.czi.meta.kg.ontology.jena;
 
 import com.univocity.parsers.tsv.TsvParser;
 import com.univocity.parsers.tsv.TsvParserSettings;
-import org.apache.jena.ontology.OntDocumentManager;
-import org.apache.jena.ontology.OntModel;
-import org.apache.jena.ontology.OntModelSpec;
-import org.apache.jena.ontology.Ontology;
 import org.apache.jena.query.*;
 import org.apache.jena.rdf.model.*;
-import org.apache.jena.reasoner.Reasoner;
-import org.apache.jena.reasoner.ReasonerRegistry;
-import org.apache.jena.util.FileManager;
 import org.apache.jena.vocabulary.RDF;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -57,48 +50,32 @@ public class AddMondoToSkos {
     Property skosInScheme, skosHasTopConcept, skosBroader, skosNarrower, skosDefiniton,
             skosAltLabel, skosExactMatch;
     Resource skosConceptScheme, skosConcept;
-    OntModel m;
-    OntModel bm;
-    OntDocumentManager dm;
+    SkosGraphBuilder skos;
+    Model bm;
     int max_c_id = 0;
 
     public AddMondoToSkos(){
-        // create the base model
-        this.bm = ModelFactory.createOntologyModel( OntModelSpec.OWL_DL_MEM_TRANS_INF );
+        // create the output model
+        this.skos = new SkosGraphBuilder();
+        this.bm = this.skos.getModel();
 
-        // create the reasoning model using the base
-        this.m = ModelFactory.createOntologyModel( OntModelSpec.OWL_DL_MEM_TRANS_INF, this.bm );
-        this.dm = this.bm.getDocumentManager();
+        this.skos.addOntologyHeader(META_URI, SKOS_URI, ONTOLOGY_NAME, ONTOLOGY_DESCRIPTION,
+                ONTOLOGY_VERSION, "@en");
 
-        ClassLoader classLoader = AddMondoToSkos.class.getClassLoader();
-
-        Ontology ont = bm.createOntology( META_URI );
-        ont.addImport( bm.createResource( SKOS_URI ) );
-        ont.setLabel(ONTOLOGY_NAME, "@en");
-        ont.setComment(ONTOLOGY_DESCRIPTION, "@en");
-        ont.setVersionInfo(ONTOLOGY_VERSION);
-
-        //File skos_ttl = new File(classLoader.getResource("skos.ttl").getFile());
-        //dm.addAltEntry( SKOS_URI, skos_ttl.getPath() );
-        //m.read( skos_ttl.getPath() );
         bm.setNsPrefix("skos", SKOS_URI);
         bm.setNsPrefix("", META_URI);
         bm.setNsPrefix("metaskos", META_URI);
 
-        //File prov_ttl = new File(classLoader.getResource("prov.ttl").getFile());
-        //dm.addAltEntry( PROV_URI, prov_ttl.getPath() );
-        //m.read( prov_ttl.getPath(), "TURTLE" );
-
-        this.skosExactMatch = m.getProperty(SKOS_URI+"exactMatch");
-        this.skosBroader  = m.getProperty(SKOS_URI + "broader");
-        this.skosNarrower  = m.getProperty(SKOS_URI + "narrower");
-        this.skosDefiniton = m.getProperty(SKOS_URI + "definition");
-        this.skosInScheme = m.getProperty(SKOS_URI + "inScheme");
-        this.skosHasTopConcept  = m.getProperty(SKOS_URI + "hasTopConcept");
-        this.skosAltLabel  = m.getProperty(SKOS_URI + "altLabel");
+        this.skosExactMatch = this.bm.createProperty(SKOS_URI+"exactMatch");
+        this.skosBroader  = this.bm.createProperty(SKOS_URI + "broader");
+        this.skosNarrower  = this.bm.createProperty(SKOS_URI + "narrower");
+        this.skosDefiniton = this.bm.createProperty(SKOS_URI + "definition");
+        this.skosInScheme = this.bm.createProperty(SKOS_URI + "inScheme");
+        this.skosHasTopConcept  = this.bm.createProperty(SKOS_URI + "hasTopConcept");
+        this.skosAltLabel  = this.bm.createProperty(SKOS_URI + "altLabel");
 
-        this.skosConcept = m.getResource(SKOS_URI + "Concept");
-        this.skosConceptScheme = m.getResource(SKOS_URI + "ConceptScheme");
+        this.skosConcept = this.bm.createResource(SKOS_URI + "Concept");
+        this.skosConceptScheme = this.bm.createResource(SKOS_URI + "ConceptScheme");
 
     }
 
@@ -131,7 +108,7 @@ public class AddMondoToSkos {
 
         this.addNarrowerConcepts(metaConcept, prefConcept, conceptScheme);
 
-        StmtIterator nIt = prefConcept.listProperties(m.getProperty(MESH_URI + "broaderConcept"));
+        StmtIterator nIt = prefConcept.listProperties(this.bm.createProperty(MESH_URI + "broaderConcept"));
         Set<String> unanchoredConcepts = new HashSet<String>();
         while(nIt.hasNext()) {
             Statement s = nIt.nextStatement();
@@ -168,7 +145,7 @@ public class AddMondoToSkos {
     }
 
     void addNarrowerConcepts(Resource metaConcept, Resource meshConcept, Resource conceptScheme) {
-        StmtIterator nIt = meshConcept.listProperties(m.getProperty(MESH_URI + "narrowerConcept"));
+        StmtIterator nIt = meshConcept.listProperties(this.bm.createProperty(MESH_URI + "narrowerConcept"));
         while(nIt.hasNext()) {
             Statement s = nIt.nextStatement();
             Resource nConcept = s.getObject().as(Resource.class);
@@ -183,7 +160,7 @@ public class AddMondoToSkos {
         String meshId = mesh.getURI().substring(mesh.getURI().lastIndexOf('/')+1);
         this.bm.add(metaConcept, this.skosExactMatch, mesh);
         if (this.meshRecords.containsKey(meshId) && this.meshRecords.get(meshId).umls.length() > 0) {
-            Resource umlsMatch = m.getResource(UMLS_URI + this.meshRecords.get(meshId).umls);
+            Resource umlsMatch = this.bm.createResource(UMLS_URI + this.meshRecords.get(meshId).umls);
             this.bm.add(metaConcept, this.skosExactMatch, umlsMatch);
         }
     }
@@ -199,7 +176,7 @@ public class AddMondoToSkos {
         Resource metaConcept = this.bm.getResource(c_id);
 
         // return if details for this concept already filled in.
-        if( metaConcept.hasProperty(label) )
+        if( this.skos.isDescribed(metaConcept) )
             return metaConcept;
 
         this.addExactMatches(metaConcept, meshConcept);
@@ -236,11 +213,9 @@ public class AddMondoToSkos {
 
     public void buildSkosFromMesh(File meshFile) throws Exception {
 
-        Model mesh_schema = FileManager.get().loadModel(MESH_URI);
-        Model data = FileManager.get().loadModel(meshFile.getPath());
-        Reasoner reasoner = ReasonerRegistry.getRDFSReasoner();
-        reasoner = reasoner.bindSchema(mesh_schema);
-        InfModel meshModel = ModelFactory.createInfModel(reasoner, data);
+        Model mesh_schema = BundledDocuments.load(MESH_URI);
+        Model data = OntologyLoader.loadMesh(meshFile);
+        Model meshModel = new MeshVocabularyMaterializer(mesh_schema).materialize(data);
 
         this.meshvBroaderDescriptor = meshModel.getProperty(MESH_URI+"broaderDescriptor");
         this.meshvBroader = meshModel.getProperty(MESH_URI+"broader");
@@ -409,6 +384,9 @@ public class AddMondoToSkos {
         @Option(name = "-mondoFile", usage = "MONDO File", required = true, metaVar = "MONDO-FILE")
         public File mondoFile;
 
+        @Option(name = "-cacheDir", usage = "Parsed Snapshot Cache Directory", required = false, metaVar = "CACHE-DIR")
+        public File cacheDir;
+
     }
 
     /**
@@ -434,10 +412,12 @@ public class AddMondoToSkos {
             parser.printSingleLineUsage(System.err);
             System.err.println("\n\n Options: \n");
             parser.printUsage(System.err);
-            System.exit(-1);
+            OntologyDaemon.exit(-1);
 
         }
 
+        OntologyLoader.setCacheDir(options.cacheDir);
+
         AddMondoToSkos m2s = new AddMondoToSkos();
         m2s.run(options.conceptsDir, options.meshFile, options.skosFile);
 
@@ -0,0 +1,79 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.ontology.OntDocumentManager;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.util.FileManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Offline resolution of the vocabularies the tools refer to (SKOS, the MeSH meshv vocabulary and PROV-O),
+ * served from the copies bundled in src/main/resources instead of being fetched over the network.
+ *
+ * Each bundled document is parsed once per JVM and the parsed model is shared by every caller, so it must
+ * be treated as read-only.
+ */
+public class BundledDocuments {
+
+    public static String SKOS_URI = "http://www.w3.org/2004/02/skos/core#";
+    public static String MESHV_URI = "http://id.nlm.nih.gov/mesh/vocab#";
+    public static String PROV_URI = "http://www.w3.org/ns/prov#";
+
+    static Map<String, String> resources = new LinkedHashMap<String, String>();
+    static {
+        resources.put(SKOS_URI, "skos.ttl");
+        resources.put("http://www.w3.org/2004/02/skos/core", "skos.ttl");
+        resources.put(MESHV_URI, "vocabulary.ttl");
+        resources.put("http://id.nlm.nih.gov/mesh/vocab", "vocabulary.ttl");
+        resources.put(PROV_URI, "prov.ttl");
+        resources.put("http://www.w3.org/ns/prov", "prov.ttl");
+    }
+
+    static Map<String, Model> parsed = new ConcurrentHashMap<String, Model>();
+
+    public static boolean isBundled(String uri) {
+        return resources.containsKey(uri);
+    }
+
+    /**
+     * @return the bundled copy of the document at uri; documents that are not bundled are read through
+     * FileManager as before.
+     */
+    public static Model load(String uri) {
+        String resource = resources.get(uri);
+        if( resource == null ) {
+            System.err.println("No bundled copy of <" + uri + ">, loading it through FileManager");
+            return FileManager.get().loadModel(uri);
+        }
+        return parsed.computeIfAbsent(resource, BundledDocuments::parseResource);
+    }
+
+    /**
+     * Registers the bundled documents with an OntDocumentManager so that owl:imports of them are answered
+     * from memory.
+     */
+    public static void configure(OntDocumentManager dm) {
+        for( String uri : resources.keySet() ) {
+            dm.addModel(uri, load(uri), true);
+        }
+    }
+
+    static Model parseResource(String resource) {
+        Model model = ModelFactory.createDefaultModel();
+        try (InputStream in = BundledDocuments.class.getClassLoader().getResourceAsStream(resource)) {
+            if( in == null )
+                throw new IllegalStateException("Bundled resource " + resource + " is missing from the classpath");
+            RDFDataMgr.read(model, in, Lang.TTL);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return model;
+    }
+}
@@ -48,118 +48,119 @@ public class ComputeMondoInheritanceDistance {
         this.m = ModelFactory.createOntologyModel( OntModelSpec.OWL_DL_MEM_TRANS_INF, this.bm );
         this.dm = this.bm.getDocumentManager();
 
-        ClassLoader classLoader = MeshToSkos.class.getClassLoader();
+        // resolve SKOS / meshv / PROV imports from the bundled copies
+        BundledDocuments.configure(this.dm);
+
+        // rdfs:subClassOf+ in the queries goes through meta:descendantOf
+        ReachabilityIndex.register();
 
-        //File prov_ttl = new File(classLoader.getResource("prov.ttl").getFile());
-        //dm.addAltEntry( PROV_URI, prov_ttl.getPath() );
-        //m.read( prov_ttl.getPath(), "TURTLE" );
         this.iaoDefinition = m.getProperty(OBO_URI + "IAO_0000115");
 
     }
 
-    private  Set<Resource> executeSimpleSparql(Model model, String query) {
-        Query query1 = QueryFactory.create(query);
-        QueryExecution qexec1 = QueryExecutionFactory.create(query1, model);
-        ResultSet results1 = qexec1.execSelect();
-        Set<Resource> s = new HashSet<Resource>();
-        for (; results1.hasNext(); ) {
-            QuerySolution soln = results1.nextSolution();
-            Resource d = soln.getResource("d");
-            Resource x = soln.getResource("xref");
-            //System.out.println(d+"\t"+x);
-            s.add(d);
-        }
-        return s;
+    public void countMondoXrefs(File mondoFile) throws Exception {
+
+        Model mondoModel = OntologyLoader.loadMondo(mondoFile);
+        this.countMondoXrefs(mondoModel);
+
     }
 
-    public void countMondoXrefs(File mondoFile) throws Exception {
+    public void countMondoXrefs(Model mondoModel) throws Exception {
 
-        Model mondoModel = ModelFactory.createDefaultModel();
-        mondoModel.read(new FileInputStream(mondoFile), null, "TTL");
-
-        String[] searches = new String[] { "umls", "mesh", "snomedct", "DOID", "Orphanet" };
-        String template = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
-                "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
-                "SELECT DISTINCT ?d ?xref \n" +
-                "WHERE {\n" +
-                "  ?d rdf:type owl:Class .\n" +
-                "  ?d rdfs:label ?dName .\n" +
-                "  ?d skos:exactMatch ?xref .\n" +
-                "  ?d rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "  FILTER( regex(str(?xref), \"(XXXXX)\") )\n" +
-                "} \n";
-        for(String s : searches) {
-            String query = template.replaceAll("XXXXX", s);
-            System.out.println( query );
-            Set<Resource> out = this.executeSimpleSparql(mondoModel, query);
-            System.out.println("Count of all disease nodes with " + s + ": " + out.size());
+        XrefProfiler profile = XrefProfiler.profile(mondoModel);
+        for(String s : profile.getSources()) {
+            System.out.println("Count of all disease nodes with " + s + ": " + profile.count(s));
         }
+        System.out.println("Count of all disease nodes: " + profile.getDiseases().cardinality());
+    }
+
+    public void computeSiblings(File mondoFile, File outFile, boolean pairs) throws Exception {
+
+        Model mondoModel = OntologyLoader.loadMondo(mondoFile);
+        this.computeSiblings(mondoModel, outFile, pairs);
 
-        String query = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
-                "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
-                "SELECT DISTINCT ?d \n" +
-                "WHERE {\n" +
-                "  ?d rdf:type owl:Class .\n" +
-                "  ?d rdfs:label ?dName .\n" +
-                "  ?d rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "} \n";
-        Set<Resource> out = this.executeSimpleSparql(mondoModel, query);
-        System.out.println("Count of all disease nodes: " + out.size());
     }
 
-    public void computeSiblings(File mondoFile) throws Exception {
-
-        Model mondoModel = ModelFactory.createDefaultModel();
-        mondoModel.read(new FileInputStream(mondoFile), null, "TTL");
-
-        String[] searches = new String[] { "umls", "mesh", "snomedct", "DOID", "Orphanet" };
-        String query = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
-                "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
-                "SELECT DISTINCT ?d1 ?d1Name ?d2 ?d2Name\n" +
-                "WHERE {\n" +
-                "  ?d1 rdf:type owl:Class .\n" +
-                "  ?d1 rdfs:label ?d1Name .\n" +
-                "  ?d1 rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "  ?d1 rdfs:subClassOf ?p .\n" +
-                "  ?d2 rdf:type owl:Class .\n" +
-                "  ?d2 rdfs:label ?d2Name .\n" +
-                "  ?d2 rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "  ?d2 rdfs:subClassOf ?p .\n" +
-                "} \n";
-        System.out.println( query );
-
-        Query query1 = QueryFactory.create(query);
-        QueryExecution qexec1 = QueryExecutionFactory.create(query1, mondoModel);
-        ResultSet results1 = qexec1.execSelect();
-        Set<Resource> s = new HashSet<Resource>();
-        for (; results1.hasNext(); ) {
-            QuerySolution soln = results1.nextSolution();
-            Resource d1 = soln.getResource("d1");
-            Resource d2 = soln.getResource("d2");
-            Literal d1Name = soln.getLiteral("d1Name");
-            Literal d2Name = soln.getLiteral("d2Name");
-            System.out.println(d1+"\t"+d2);
-        }
+    /**
+     * Sibling groups among the MONDO diseases (labelled classes below MONDO_0000001), one line per parent,
+     * or one line per sibling pair when pairs is set. Written to outFile, or stdout when it is null.
+     */
+    public void computeSiblings(Model mondoModel, File outFile, boolean pairs) throws Exception {
+
+        long startTime = System.currentTimeMillis();
+        SiblingSets siblings = SiblingSets.forMondo(mondoModel, OBO_URI + "MONDO_0000001");
+        Writer w = outFile != null ?
+                new BufferedWriter(new FileWriter(outFile), 1 << 16) :
+                new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        if( pairs )
+            siblings.writePairs(w);
+        else
+            siblings.writeSets(w);
+        if( outFile != null )
+            w.close();
+        System.err.println("Wrote " + siblings.groupCount() + " sibling groups in " +
+                (System.currentTimeMillis() - startTime) + " ms");
+
+    }
+
+    /**
+     * Shortest is-a distance, lowest common ancestor and depths for every pair of MONDO classes in pairsFile.
+     */
+    public long computeDistances(Model mondoModel, File pairsFile, File outFile, int threads) throws IOException {
+
+        InheritanceDistanceEngine engine = new InheritanceDistanceEngine(HierarchyIndex.subClassOf(mondoModel));
+        return engine.computePairs(pairsFile, outFile, threads);
+
+    }
+
+    /**
+     * Resnik, Lin and ancestor-Jaccard similarity for every pair of MONDO classes in pairsFile.
+     */
+    public long computeSimilarities(Model mondoModel, File pairsFile, File outFile, int threads) throws IOException {
+
+        SemanticSimilarity similarity = new SemanticSimilarity(HierarchyIndex.subClassOf(mondoModel));
+        return similarity.scorePairs(pairsFile, outFile, threads);
+
+    }
+
+    public long computePairs(Model mondoModel, File pairsFile, File outFile, int threads, boolean similarity)
+            throws IOException {
+
+        if( similarity )
+            return this.computeSimilarities(mondoModel, pairsFile, outFile, threads);
+        return this.computeDistances(mondoModel, pairsFile, outFile, threads);
 
     }
 
     public static class Options {
 
-        @Option(name = "-mondoFile", usage = "MONDO File", required = true, metaVar = "MONDO-FILE")
+        @Option(name = "-mondoFile", usage = "MONDO File", required = false, metaVar = "MONDO-FILE")
         public File mondoFile;
 
+        @Option(name = "-storeDir", usage = "TDB2 Store Directory (instead of -mondoFile)", required = false, metaVar = "STORE-DIR")
+        public File storeDir;
+
+        @Option(name = "-cacheDir", usage = "Parsed Snapshot Cache Directory", required = false, metaVar = "CACHE-DIR")
+        public File cacheDir;
+
+        @Option(name = "-lang", usage = "Keep only MONDO literals in these languages (e.g. en)", required = false, metaVar = "LANGS")
+        public String lang;
+
+        @Option(name = "-pairsFile", usage = "TSV of MONDO class pairs to compute distances for", required = false, metaVar = "PAIRS-FILE")
+        public File pairsFile;
+
+        @Option(name = "-outFile", usage = "Output TSV (distances with -pairsFile, otherwise siblings; default stdout)", required = false, metaVar = "OUT-FILE")
+        public File outFile;
+
+        @Option(name = "-similarity", usage = "With -pairsFile, write Resnik / Lin / Jaccard similarity instead of distances", required = false)
+        public boolean similarity = false;
+
+        @Option(name = "-siblingPairs", usage = "Write sibling pairs instead of sibling groups", required = false)
+        public boolean siblingPairs = false;
+
+        @Option(name = "-threads", usage = "Worker Threads (default: all cores)", required = false, metaVar = "THREADS")
+        public int threads = Runtime.getRuntime().availableProcessors();
+
     }
 
     /**
@@ -177,6 +178,15 @@ public class ComputeMondoInheritanceDistance {
         try {
 
             parser.parseArgument(args);
+            if( options.mondoFile == null && options.storeDir == null ) {
+                throw new CmdLineException(parser, "One of -mondoFile or -storeDir is required");
+            }
+            if( options.pairsFile != null && options.outFile == null ) {
+                throw new CmdLineException(parser, "-pairsFile requires -outFile");
+            }
+            if( options.threads < 1 ) {
+                throw new CmdLineException(parser, "-threads must be at least 1");
+            }
 
         } catch (CmdLineException e) {
 
@@ -185,12 +195,32 @@ public class ComputeMondoInheritanceDistance {
             parser.printSingleLineUsage(System.err);
             System.err.println("\n\n Options: \n");
             parser.printUsage(System.err);
-            System.exit(-1);
+            OntologyDaemon.exit(-1);
 
         }
 
+        OntologyLoader.setCacheDir(options.cacheDir);
+        OntologyLoader.setLanguages(options.lang);
+
         ComputeMondoInheritanceDistance mid = new ComputeMondoInheritanceDistance();
-        mid.computeSiblings(options.mondoFile);
+        if( options.storeDir != null ) {
+            OntologyStore store = OntologyStore.open(options.storeDir);
+            store.begin();
+            try {
+                if( options.pairsFile != null )
+                    mid.computePairs(store.getMondoModel(), options.pairsFile, options.outFile, options.threads,
+                            options.similarity);
+                else
+                    mid.computeSiblings(store.getMondoModel(), options.outFile, options.siblingPairs);
+            } finally {
+                store.end();
+            }
+        } else if( options.pairsFile != null ) {
+            mid.computePairs(OntologyLoader.loadMondo(options.mondoFile), options.pairsFile, options.outFile,
+                    options.threads, options.similarity);
+        } else {
+            mid.computeSiblings(options.mondoFile, options.outFile, options.siblingPairs);
+        }
 
     }
 }
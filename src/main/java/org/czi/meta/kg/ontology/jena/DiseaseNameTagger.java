@@ -0,0 +1,526 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.vocabulary.OWL;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Dictionary tagger for the MONDO names QueryMondo dumps: the labels and exact synonyms of every owl:Class
+ * below a root (MONDO_0004976 by default), kept with the concepts they name.
+ *
+ * The names are compiled into an Aho-Corasick automaton over case folded characters, so a document is
+ * tagged in a single pass whatever the size of the dictionary. Goto transitions live in one open addressing
+ * hash table keyed by (state, char); failure links and dictionary suffix links are plain int arrays.
+ * Folding keeps every character in place, so match offsets are offsets into the original text. A match
+ * only counts when it starts and ends at a token boundary (no letter or digit on either side); by default
+ * overlapping matches are resolved leftmost-longest.
+ *
+ * Documents are lines, either "text" (the document id is then file:line) or "id<TAB>text". Lines are tagged
+ * in batches on all cores and written in input order as
+ *     doc_id  start  end  matched text  mondo_id  name
+ * one row per concept a matched name belongs to.
+ */
+public class DiseaseNameTagger {
+
+    public static int BATCH_LINES = 1000;
+
+    String[] concepts;     // concept -> IRI
+    String[] names;        // pattern -> (first seen) name
+    int[][] patternConcepts;
+
+    int stateCount;
+    long[] keys;           // goto: (state << 16 | char) + 1, 0 when the slot is free
+    int[] targets;
+    int mask;
+    int[] fail;
+    int[] terminal;        // state -> pattern ending there, or -1
+    int[] dictionary;      // state -> nearest terminal state on its failure chain, or -1
+    boolean longest = true;
+
+    public static final class Match {
+        final int start;
+        final int end;
+        final int pattern;
+
+        Match(int start, int end, int pattern) {
+            this.start = start;
+            this.end = end;
+            this.pattern = pattern;
+        }
+
+        public int getStart() {
+            return this.start;
+        }
+
+        public int getEnd() {
+            return this.end;
+        }
+    }
+
+    /**
+     * @param entries (name, concept IRI) pairs
+     * @param minLength names shorter than this (after trimming) are left out
+     */
+    public DiseaseNameTagger(List<String[]> entries, int minLength) {
+        long startTime = System.currentTimeMillis();
+        Map<String, Integer> conceptIds = new HashMap<String, Integer>();
+        Map<String, Integer> patternIds = new HashMap<String, Integer>();
+        List<String> names = new ArrayList<String>();
+        List<Set<Integer>> patternConcepts = new ArrayList<Set<Integer>>();
+        for( String[] e : entries ) {
+            String name = e[0].trim();
+            if( name.length() < minLength )
+                continue;
+            Integer c = conceptIds.computeIfAbsent(e[1], k -> conceptIds.size());
+            Integer p = patternIds.get(fold(name));
+            if( p == null ) {
+                p = names.size();
+                patternIds.put(fold(name), p);
+                names.add(name);
+                patternConcepts.add(new TreeSet<Integer>());
+            }
+            patternConcepts.get(p).add(c);
+        }
+        this.concepts = new String[conceptIds.size()];
+        for( Map.Entry<String, Integer> e : conceptIds.entrySet() )
+            this.concepts[e.getValue()] = e.getKey();
+        this.names = names.toArray(new String[0]);
+        this.patternConcepts = new int[this.names.length][];
+        for( int p = 0; p < this.names.length; p++ )
+            this.patternConcepts[p] = patternConcepts.get(p).stream().mapToInt(Integer::intValue).toArray();
+
+        this.buildTrie();
+        this.buildLinks();
+        System.err.println("Compiled " + this.names.length + " names of " + this.concepts.length + " concepts into " +
+                this.stateCount + " states in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * Labels and exact synonyms of the owl:Class descendants of root in a MONDO graph.
+     */
+    public static List<String[]> names(Model mondoModel, String root) throws IOException {
+        Graph graph = mondoModel.getGraph();
+        ReachabilityIndex reach = ReachabilityIndex.of(graph);
+        HierarchyIndex h = reach.getHierarchy();
+        Node synonym = NodeFactory.createURI(DiseaseTableExtractor.OBOINOWL_URI + "hasExactSynonym");
+        List<String[]> entries = new ArrayList<String[]>();
+        int r = h.id(root);
+        if( r < 0 )
+            return entries;
+        for( int d : reach.descendants(r) ) {
+            Node dNode = NodeFactory.createURI(h.iri(d));
+            if( !graph.contains(dNode, RDF.Nodes.type, OWL.Class.asNode()) )
+                continue;
+            for( Node p : new Node[]{RDFS.Nodes.label, synonym} ) {
+                ExtendedIterator<Triple> it = graph.find(dNode, p, Node.ANY);
+                while( it.hasNext() ) {
+                    Node o = it.next().getObject();
+                    if( o.isLiteral() )
+                        entries.add(new String[]{o.getLiteralLexicalForm(), h.iri(d)});
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Same names, from a hierarchy snapshot.
+     */
+    public static List<String[]> names(HierarchySnapshot snapshot, String root) {
+        List<String[]> entries = new ArrayList<String[]>();
+        int r = snapshot.id(root);
+        if( r < 0 )
+            return entries;
+        for( int d : snapshot.descendants(r) ) {
+            if( !snapshot.isClass(d) )
+                continue;
+            for( int l = 0; l < snapshot.labelCount(d); l++ )
+                entries.add(new String[]{snapshot.label(d, l), snapshot.iri(d)});
+            for( int s = 0; s < snapshot.synonymCount(d); s++ )
+                entries.add(new String[]{snapshot.synonym(d, s), snapshot.iri(d)});
+        }
+        return entries;
+    }
+
+    public void setLongest(boolean longest) {
+        this.longest = longest;
+    }
+
+    public int size() {
+        return this.names.length;
+    }
+
+    static char fold(char c) {
+        return Character.isWhitespace(c) ? ' ' : Character.toLowerCase(c);
+    }
+
+    static String fold(String s) {
+        char[] chars = s.toCharArray();
+        for( int i = 0; i < chars.length; i++ )
+            chars[i] = fold(chars[i]);
+        return new String(chars);
+    }
+
+    int next(int state, char c) {
+        long key = (((long) state << 16) | c) + 1;
+        int slot = (int) (mix(key) & this.mask);
+        while( this.keys[slot] != 0 ) {
+            if( this.keys[slot] == key )
+                return this.targets[slot];
+            slot = (slot + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    private void buildTrie() {
+        int chars = 0;
+        for( String n : this.names )
+            chars += n.length();
+        int capacity = Integer.highestOneBit(Math.max(16, chars * 2 - 1)) << 1;
+        this.keys = new long[capacity];
+        this.targets = new int[capacity];
+        this.mask = capacity - 1;
+        this.terminal = new int[chars + 1];
+        Arrays.fill(this.terminal, -1);
+        this.stateCount = 1;
+        for( int p = 0; p < this.names.length; p++ ) {
+            String name = fold(this.names[p]);
+            int state = 0;
+            for( int i = 0; i < name.length(); i++ ) {
+                int next = this.next(state, name.charAt(i));
+                if( next < 0 ) {
+                    next = this.stateCount++;
+                    this.put(state, name.charAt(i), next);
+                }
+                state = next;
+            }
+            this.terminal[state] = p;
+        }
+        this.terminal = Arrays.copyOf(this.terminal, this.stateCount);
+    }
+
+    private void put(int state, char c, int target) {
+        long key = (((long) state << 16) | c) + 1;
+        int slot = (int) (mix(key) & this.mask);
+        while( this.keys[slot] != 0 )
+            slot = (slot + 1) & this.mask;
+        this.keys[slot] = key;
+        this.targets[slot] = target;
+    }
+
+    static long mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return key ^ (key >>> 29);
+    }
+
+    //
+    // Failure and dictionary links, breadth first so a state's links are set before its children's.
+    //
+    private void buildLinks() {
+        int n = this.stateCount;
+        int[] childOffsets = new int[n + 1];
+        for( long key : this.keys ) {
+            if( key != 0 )
+                childOffsets[(int) ((key - 1) >>> 16) + 1]++;
+        }
+        for( int s = 0; s < n; s++ )
+            childOffsets[s + 1] += childOffsets[s];
+        int[] fill = Arrays.copyOf(childOffsets, n);
+        int[] children = new int[n - 1];
+        char[] labels = new char[n - 1];
+        for( int slot = 0; slot < this.keys.length; slot++ ) {
+            long key = this.keys[slot];
+            if( key == 0 )
+                continue;
+            int parent = (int) ((key - 1) >>> 16);
+            children[fill[parent]] = this.targets[slot];
+            labels[fill[parent]++] = (char) ((key - 1) & 0xFFFF);
+        }
+
+        this.fail = new int[n];
+        this.dictionary = new int[n];
+        Arrays.fill(this.dictionary, -1);
+        int[] queue = new int[n];
+        int head = 0;
+        int tail = 0;
+        for( int k = childOffsets[0]; k < childOffsets[1]; k++ )
+            queue[tail++] = children[k];
+        while( head < tail ) {
+            int s = queue[head++];
+            for( int k = childOffsets[s]; k < childOffsets[s + 1]; k++ ) {
+                int child = children[k];
+                char c = labels[k];
+                int f = this.fail[s];
+                int next;
+                while( (next = this.next(f, c)) < 0 && f != 0 )
+                    f = this.fail[f];
+                this.fail[child] = next < 0 ? 0 : next;
+                int fc = this.fail[child];
+                this.dictionary[child] = this.terminal[fc] >= 0 ? fc : this.dictionary[fc];
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * @return the matches in text, by start offset
+     */
+    public List<Match> tag(CharSequence text) {
+        List<Match> matches = new ArrayList<Match>();
+        int state = 0;
+        int len = text.length();
+        for( int i = 0; i < len; i++ ) {
+            char c = fold(text.charAt(i));
+            int next;
+            while( (next = this.next(state, c)) < 0 && state != 0 )
+                state = this.fail[state];
+            state = next < 0 ? 0 : next;
+            if( i + 1 < len && isWordChar(text.charAt(i + 1)) )
+                continue;   // no match can end inside a token
+            for( int s = this.terminal[state] >= 0 ? state : this.dictionary[state]; s >= 0; s = this.dictionary[s] ) {
+                int p = this.terminal[s];
+                int start = i + 1 - this.names[p].length();
+                if( start == 0 || !isWordChar(text.charAt(start - 1)) )
+                    matches.add(new Match(start, i + 1, p));
+            }
+        }
+        matches.sort((a, b) -> a.start != b.start ? Integer.compare(a.start, b.start) : Integer.compare(b.end, a.end));
+        if( !this.longest )
+            return matches;
+
+        List<Match> kept = new ArrayList<Match>();
+        int end = 0;
+        for( Match m : matches ) {
+            if( m.start >= end ) {
+                kept.add(m);
+                end = m.end;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * @return the IRIs of the concepts named by the text of m
+     */
+    public List<String> concepts(Match m) {
+        List<String> iris = new ArrayList<String>();
+        for( int c : this.patternConcepts[m.pattern] )
+            iris.add(this.concepts[c]);
+        return iris;
+    }
+
+    public String name(Match m) {
+        return this.names[m.pattern];
+    }
+
+    /**
+     * Appends the TSV rows for one document line.
+     */
+    void tagLine(String source, long lineNo, String line, StringBuilder out) {
+        String id = source + ":" + lineNo;
+        String text = line;
+        int tab = line.indexOf('\t');
+        if( tab >= 0 ) {
+            id = line.substring(0, tab);
+            text = line.substring(tab + 1);
+        }
+        for( Match m : this.tag(text) ) {
+            String matched = text.substring(m.start, m.end);
+            for( int c : this.patternConcepts[m.pattern] ) {
+                out.append(id).append('\t').append(m.start).append('\t').append(m.end).append('\t').append(matched)
+                        .append('\t').append(this.concepts[c]).append('\t').append(this.names[m.pattern]).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Tags every line of in on threads workers, writing rows to out in input order.
+     *
+     * @return the number of lines read
+     */
+    public long tagStream(String source, BufferedReader in, Writer out, int threads) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Deque<Future<String>> pending = new ArrayDeque<Future<String>>();
+        long lines = 0;
+        try {
+            while( true ) {
+                List<String> batch = new ArrayList<String>(BATCH_LINES);
+                String line;
+                while( batch.size() < BATCH_LINES && (line = in.readLine()) != null )
+                    batch.add(line);
+                if( batch.isEmpty() )
+                    break;
+                long first = lines + 1;
+                lines += batch.size();
+                pending.add(pool.submit(() -> {
+                    StringBuilder sb = new StringBuilder();
+                    for( int i = 0; i < batch.size(); i++ )
+                        this.tagLine(source, first + i, batch.get(i), sb);
+                    return sb.toString();
+                }));
+                // bound the batches in flight, writing the oldest first
+                while( pending.size() > 2 * threads )
+                    out.write(result(pending.poll()));
+            }
+            while( !pending.isEmpty() )
+                out.write(result(pending.poll()));
+        } finally {
+            pool.shutdownNow();
+        }
+        return lines;
+    }
+
+    private static String result(Future<String> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    static BufferedReader open(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        if( f.getName().endsWith(".gz") )
+            in = new GZIPInputStream(in, 1 << 16);
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    public static class Options {
+
+        @Option(name = "-mondoFile", usage = "MONDO File", required = false, metaVar = "MONDO-FILE")
+        public File mondoFile;
+
+        @Option(name = "-storeDir", usage = "TDB2 Store Directory (instead of -mondoFile)", required = false, metaVar = "STORE-DIR")
+        public File storeDir;
+
+        @Option(name = "-snapshotFile", usage = "Hierarchy Snapshot File (instead of -mondoFile)", required = false, metaVar = "SNAPSHOT-FILE")
+        public File snapshotFile;
+
+        @Option(name = "-root", usage = "Root MONDO Class (default MONDO_0004976)", required = false, metaVar = "MONDO-ID")
+        public String root = "MONDO_0004976";
+
+        @Option(name = "-cacheDir", usage = "Parsed Snapshot Cache Directory", required = false, metaVar = "CACHE-DIR")
+        public File cacheDir;
+
+        @Option(name = "-lang", usage = "Keep only MONDO literals in these languages (e.g. en)", required = false, metaVar = "LANGS")
+        public String lang;
+
+        @Option(name = "-outFile", usage = "OUT File (default: standard output)", required = false, metaVar = "OUT-FILE")
+        public File outFile;
+
+        @Option(name = "-minLength", usage = "Shortest Name to Tag (default 2)", required = false, metaVar = "CHARS")
+        public int minLength = 2;
+
+        @Option(name = "-overlapping", usage = "Report overlapping matches instead of leftmost-longest", required = false)
+        public boolean overlapping = false;
+
+        @Option(name = "-threads", usage = "Threads (default: all cores)", required = false, metaVar = "THREADS")
+        public int threads = Runtime.getRuntime().availableProcessors();
+
+        @Argument(usage = "Documents, one per line, optionally gzipped (default: standard input)", metaVar = "FILES...", multiValued = true)
+        public List<File> inFiles = new ArrayList<File>();
+
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        long startTime = System.currentTimeMillis();
+
+        Options options = new Options();
+
+        CmdLineParser parser = new CmdLineParser(options);
+
+        try {
+
+            parser.parseArgument(args);
+            if( options.mondoFile == null && options.storeDir == null && options.snapshotFile == null ) {
+                throw new CmdLineException(parser, "One of -mondoFile, -storeDir or -snapshotFile is required");
+            }
+
+        } catch (CmdLineException e) {
+
+            System.err.println(e.getMessage());
+            System.err.print("Arguments: ");
+            parser.printSingleLineUsage(System.err);
+            System.err.println("\n\n Options: \n");
+            parser.printUsage(System.err);
+            OntologyDaemon.exit(-1);
+
+        }
+
+        OntologyLoader.setCacheDir(options.cacheDir);
+        OntologyLoader.setLanguages(options.lang);
+
+        String root = DiseaseTableExtractor.OBO_URI + options.root;
+        List<String[]> entries;
+        if( options.snapshotFile != null ) {
+            entries = names(HierarchySnapshot.open(options.snapshotFile), root);
+        } else if( options.storeDir != null ) {
+            OntologyStore store = OntologyStore.open(options.storeDir);
+            store.begin();
+            try {
+                entries = names(store.getMondoModel(), root);
+            } finally {
+                store.end();
+            }
+        } else {
+            entries = names(OntologyLoader.loadMondo(options.mondoFile), root);
+        }
+        DiseaseNameTagger tagger = new DiseaseNameTagger(entries, options.minLength);
+        tagger.setLongest(!options.overlapping);
+
+        long tagStart = System.currentTimeMillis();
+        long lines = 0;
+        Writer out = new BufferedWriter(options.outFile == null ?
+                new OutputStreamWriter(System.out, StandardCharsets.UTF_8) :
+                new OutputStreamWriter(new FileOutputStream(options.outFile), StandardCharsets.UTF_8), 1 << 16);
+        try {
+            if( options.inFiles.isEmpty() ) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16);
+                lines += tagger.tagStream("stdin", in, out, options.threads);
+            }
+            for( File f : options.inFiles ) {
+                try (BufferedReader in = open(f)) {
+                    lines += tagger.tagStream(f.getName(), in, out, options.threads);
+                }
+            }
+        } finally {
+            out.flush();
+            if( options.outFile != null )
+                out.close();
+        }
+        long ms = System.currentTimeMillis() - tagStart;
+        System.err.println("Tagged " + lines + " documents in " + ms + " ms (" + (lines * 1000 / Math.max(1, ms)) +
+                " per second), " + (System.currentTimeMillis() - startTime) + " ms in all");
+
+    }
+}
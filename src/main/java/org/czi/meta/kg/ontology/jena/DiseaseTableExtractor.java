@@ -0,0 +1,144 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.vocabulary.OWL;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Native replacement for the five Extract_MONDO_Diseases queries.
+ *
+ * The disease set (owl:Class descendants of MONDO_0000001) is computed once from the reachability index,
+ * then every disease is visited a single time and its rows are appended to all five tables together:
+ *   disease   mondo_id, name                           (rdfs:label)
+ *   parent    mondo_id, name, parent_id, parent_name   (rdfs:subClassOf to a labelled class)
+ *   xref      mondo_id, xref                           (skos:exactMatch)
+ *   synonym   mondo_id, synonym                        (oboInOwl:hasExactSynonym)
+ *   rare      mondo_id                                 (labelled, with the rare restriction on itself or
+ *                                                       on one of its ancestors)
+ * Values are formatted the way the SPARQL path writes them, so the tables hold the same rows; only the
+ * row order differs.
+ */
+public class DiseaseTableExtractor {
+
+    public static String OBO_URI = "http://purl.obolibrary.org/obo/";
+    public static String OBOINOWL_URI = "http://www.geneontology.org/formats/oboInOwl#";
+    public static String SKOS_URI = "http://www.w3.org/2004/02/skos/core#";
+
+    public static String[] NAMES = new String[] {"disease", "parent", "xref", "synonym", "rare"};
+
+    static Node ROOT = NodeFactory.createURI(OBO_URI + "MONDO_0000001");
+    static Node EXACT_MATCH = NodeFactory.createURI(SKOS_URI + "exactMatch");
+    static Node EXACT_SYNONYM = NodeFactory.createURI(OBOINOWL_URI + "hasExactSynonym");
+    static Node RARE_PROPERTY = NodeFactory.createURI(OBO_URI + "RO_0002573");
+    static Node RARE_FILLER = NodeFactory.createURI(OBO_URI + "MONDO_0021136");
+
+    Model model;
+    Graph graph;
+
+    public DiseaseTableExtractor(Model mondoModel) {
+        this.model = mondoModel;
+        this.graph = mondoModel.getGraph();
+    }
+
+    /**
+     * Writes outstem + {disease, parent, xref, synonym, rare} + ".tsv" (".tsv.gz" when gzip is set).
+     */
+    public void extract(String outstem, boolean gzip) throws IOException {
+        long startTime = System.currentTimeMillis();
+        ReachabilityIndex reach = ReachabilityIndex.of(this.graph);
+        HierarchyIndex h = reach.getHierarchy();
+
+        BitSet rare = this.rareClasses();
+
+        TsvResultSink[] sinks = new TsvResultSink[NAMES.length];
+        try {
+            for( int i = 0; i < NAMES.length; i++ )
+                sinks[i] = new TsvResultSink(TsvResultSink.fileFor(outstem, NAMES[i], gzip), gzip);
+            sinks[0].writeHeader(Arrays.asList("mondo_id", "name"));
+            sinks[1].writeHeader(Arrays.asList("mondo_id", "name", "parent_id", "parent_name"));
+            sinks[2].writeHeader(Arrays.asList("mondo_id", "xref"));
+            sinks[3].writeHeader(Arrays.asList("mondo_id", "synonym"));
+            sinks[4].writeHeader(Collections.singletonList("mondo_id"));
+
+            int root = h.id(ROOT.getURI());
+            int[] diseases = root < 0 ? new int[0] : reach.descendants(root);
+            for( int d : diseases ) {
+                Node dNode = NodeFactory.createURI(h.iri(d));
+                if( !this.graph.contains(dNode, RDF.Nodes.type, OWL.Class.asNode()) )
+                    continue;
+                this.visit(d, dNode, rare, sinks);
+            }
+
+            for( int i = 0; i < NAMES.length; i++ )
+                System.out.println("Wrote " + sinks[i].getRows() + " " + NAMES[i] + " rows");
+        } finally {
+            for( TsvResultSink sink : sinks )
+                if( sink != null )
+                    sink.close();
+        }
+        System.out.println("Extracted " + NAMES.length + " tables natively in " +
+                (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    private void visit(int d, Node dNode, BitSet rare, TsvResultSink[] sinks) throws IOException {
+        String id = this.format(dNode);
+        List<String> names = this.values(dNode, RDFS.Nodes.label);
+
+        for( String name : names )
+            sinks[0].writeRow(id, name);
+
+        ExtendedIterator<Triple> it = this.graph.find(dNode, RDFS.Nodes.subClassOf, Node.ANY);
+        while( it.hasNext() ) {
+            Node p = it.next().getObject();
+            List<String> parentNames = this.values(p, RDFS.Nodes.label);
+            if( parentNames.isEmpty() || names.isEmpty() )
+                continue;
+            String parentId = this.format(p);
+            for( String name : names )
+                for( String parentName : parentNames )
+                    sinks[1].writeRow(id, name, parentId, parentName);
+        }
+
+        for( String xref : this.values(dNode, EXACT_MATCH) )
+            sinks[2].writeRow(id, xref);
+
+        for( String synonym : this.values(dNode, EXACT_SYNONYM) )
+            sinks[3].writeRow(id, synonym);
+
+        if( rare.get(d) && !names.isEmpty() )
+            sinks[4].writeRow(id);
+    }
+
+    //
+    // Classes that are rdfs:subClassOf the (RO_0002573 some MONDO_0021136) restriction, directly or through
+    // any of their ancestors.
+    //
+    BitSet rareClasses() throws IOException {
+        RestrictionIndex restrictions = RestrictionIndex.of(this.graph);
+        return (BitSet) restrictions.classesWith(restrictions.pair(RARE_PROPERTY, RARE_FILLER)).clone();
+    }
+
+    private List<String> values(Node s, Node p) {
+        List<String> out = new ArrayList<String>();
+        ExtendedIterator<Triple> it = this.graph.find(s, p, Node.ANY);
+        while( it.hasNext() )
+            out.add(this.format(it.next().getObject()));
+        return out;
+    }
+
+    //
+    // Same text the SPARQL path writes (RDFNode.toString()).
+    //
+    private String format(Node n) {
+        return this.model.asRDFNode(n).toString();
+    }
+}
@@ -0,0 +1,183 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Directory of cache entries bounded in total size, evicting the least recently used entries first.
+ *
+ * Entries are plain files named by their key. The last-modified time of an entry is refreshed on every hit
+ * and used as its access time, so the cache state survives between runs without a separate index.
+ *
+ * Only files named like an entry (parsed snapshots NAME.rt, reachability indexes reach-*.bin, query results
+ * rs-*.srt) count towards the bound or are ever evicted, so pointing the cache at a directory that also
+ * holds other files is harmless. Temporary files left behind by killed runs are deleted once they are a day
+ * old.
+ */
+public class DiskCache {
+
+    public static long DEFAULT_MAX_BYTES = Long.getLong("meta.kg.cache.maxMb", 8192L) * 1024L * 1024L;
+    public static long TMP_MAX_AGE_MS = 24L * 60 * 60 * 1000;
+
+    static final String ENTRY = "([a-z]+-[0-9a-f-]+\\.rt|reach-[0-9a-f]+\\.bin|rs-[0-9a-f]+\\.srt)";
+    static final Pattern ENTRY_NAME = Pattern.compile(ENTRY);
+    static final Pattern TMP_NAME = Pattern.compile(ENTRY + "[0-9]+\\.tmp");
+
+    public interface EntryWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    File cacheDir;
+    long maxBytes;
+
+    public DiskCache(File cacheDir, long maxBytes) {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+        this.cacheDir.mkdirs();
+    }
+
+    public DiskCache(File cacheDir) {
+        this(cacheDir, DEFAULT_MAX_BYTES);
+    }
+
+    static Map<String, String> digests = new java.util.concurrent.ConcurrentHashMap<String, String>();
+
+    /**
+     * Digests are remembered per path, size and modification time, so a source file read by several
+     * caches in one run is only hashed once.
+     */
+    public static String sha256(File file) throws IOException {
+        String stamp = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+        String digest = digests.get(stamp);
+        if( digest != null )
+            return digest;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            digest = DigestUtils.sha256Hex(in);
+        }
+        digests.put(stamp, digest);
+        return digest;
+    }
+
+    public static String sha256(String s) {
+        return DigestUtils.sha256Hex(s);
+    }
+
+    /**
+     * @return the cached entry for key, or null on a miss
+     */
+    public File get(String key) {
+        File entry = new File(this.cacheDir, key);
+        if( !entry.isFile() )
+            return null;
+        entry.setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    /**
+     * A new entry being written. Its bytes go to a temporary file, so that concurrent readers never see a
+     * partial entry; commit() moves it into place, close() without a commit discards it.
+     */
+    public final class Pending implements Closeable {
+        final File entry;
+        final File tmp;
+        final OutputStream out;
+        boolean done = false;
+
+        Pending(String key) throws IOException {
+            if( !ENTRY_NAME.matcher(key).matches() )
+                throw new IllegalArgumentException("Not a cache entry name: " + key);
+            this.entry = new File(DiskCache.this.cacheDir, key);
+            this.tmp = File.createTempFile(key, ".tmp", DiskCache.this.cacheDir);
+            this.out = new BufferedOutputStream(new FileOutputStream(this.tmp));
+        }
+
+        public OutputStream getOut() {
+            return this.out;
+        }
+
+        /**
+         * Stores the entry, then evicts old entries until the cache fits in its size bound again.
+         */
+        public File commit() throws IOException {
+            this.done = true;
+            try {
+                this.out.close();
+                Files.move(this.tmp.toPath(), this.entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | RuntimeException e) {
+                this.tmp.delete();
+                throw e;
+            }
+            DiskCache.this.evict(this.entry);
+            return this.entry;
+        }
+
+        @Override
+        public void close() {
+            if( this.done )
+                return;
+            this.done = true;
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                // the entry is dropped anyway
+            }
+            this.tmp.delete();
+        }
+    }
+
+    /**
+     * @return a new entry for key, to be written and then committed (or closed to give it up)
+     */
+    public Pending begin(String key) throws IOException {
+        return new Pending(key);
+    }
+
+    /**
+     * Writes a new entry for key in one go.
+     */
+    public File put(String key, EntryWriter writer) throws IOException {
+        try (Pending pending = this.begin(key)) {
+            writer.write(pending.getOut());
+            return pending.commit();
+        }
+    }
+
+    synchronized void evict(File keep) {
+        File[] files = this.cacheDir.listFiles();
+        if( files == null )
+            return;
+        List<File> entries = new ArrayList<File>();
+        long total = 0;
+        long now = System.currentTimeMillis();
+        for( File f : files ) {
+            if( ENTRY_NAME.matcher(f.getName()).matches() ) {
+                entries.add(f);
+                total += f.length();
+            } else if( TMP_NAME.matcher(f.getName()).matches() && now - f.lastModified() > TMP_MAX_AGE_MS ) {
+                if( f.delete() )
+                    System.err.println("Deleted stale temporary file " + f.getName());
+            }
+        }
+        if( total <= this.maxBytes )
+            return;
+
+        entries.sort(Comparator.comparingLong(File::lastModified));
+        for( File f : entries ) {
+            if( total <= this.maxBytes )
+                break;
+            if( f.equals(keep) )
+                continue;
+            long length = f.length();
+            if( f.delete() ) {
+                total -= length;
+                System.err.println("Evicted cache entry " + f.getName());
+            }
+        }
+    }
+}
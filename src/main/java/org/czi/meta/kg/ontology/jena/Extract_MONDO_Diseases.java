@@ -5,12 +5,17 @@ import org.apache.jena.ontology.OntModel;
 import org.apache.jena.ontology.OntModelSpec;
 import org.apache.jena.query.*;
 import org.apache.jena.rdf.model.*;
+import org.apache.jena.shared.Lock;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class Extract_MONDO_Diseases {
@@ -37,199 +42,73 @@ public class Extract_MONDO_Diseases {
         this.m = ModelFactory.createOntologyModel( OntModelSpec.OWL_DL_MEM_TRANS_INF, this.bm );
         this.dm = this.bm.getDocumentManager();
 
-        ClassLoader classLoader = MeshToSkos.class.getClassLoader();
+        // resolve SKOS / meshv / PROV imports from the bundled copies
+        BundledDocuments.configure(this.dm);
+
+        // rdfs:subClassOf+ in the queries goes through meta:descendantOf
+        ReachabilityIndex.register();
 
-        //File prov_ttl = new File(classLoader.getResource("prov.ttl").getFile());
-        //dm.addAltEntry( PROV_URI, prov_ttl.getPath() );
-        //m.read( prov_ttl.getPath(), "TURTLE" );
         this.iaoDefinition = m.getProperty(OBO_URI + "IAO_0000115");
 
     }
 
-    private  Set<Resource> executeSimpleSparql(Model model, String query) {
-        Query query1 = QueryFactory.create(query);
-        QueryExecution qexec1 = QueryExecutionFactory.create(query1, model);
-        ResultSet results1 = qexec1.execSelect();
-        Set<Resource> s = new HashSet<Resource>();
-        for (; results1.hasNext(); ) {
-            QuerySolution soln = results1.nextSolution();
-            Resource d = soln.getResource("d");
-            Resource x = soln.getResource("xref");
-            //System.out.println(d+"\t"+x);
-            s.add(d);
-        }
-        return s;
-    }
-
     public void countMondoXrefs(File mondoFile) throws Exception {
 
-        Model mondoModel = ModelFactory.createDefaultModel();
-        mondoModel.read(new FileInputStream(mondoFile), null, "TTL");
+        Model mondoModel = OntologyLoader.loadMondo(mondoFile);
+        this.countMondoXrefs(mondoModel);
 
-        String[] searches = new String[] { "umls", "mesh", "snomedct", "DOID", "Orphanet" };
-        String template = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
-                "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
-                "SELECT DISTINCT ?d ?xref \n" +
-                "WHERE {\n" +
-                "  ?d rdf:type owl:Class .\n" +
-                "  ?d rdfs:label ?dName .\n" +
-                "  ?d skos:exactMatch ?xref .\n" +
-                "  ?d rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "  FILTER( regex(str(?xref), \"(XXXXX)\") )\n" +
-                "} \n";
-        for(String s : searches) {
-            String query = template.replaceAll("XXXXX", s);
-            System.out.println( query );
-            Set<Resource> out = this.executeSimpleSparql(mondoModel, query);
-            System.out.println("Count of all disease nodes with " + s + ": " + out.size());
-        }
+    }
 
-        String query = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
-                "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
-                "SELECT DISTINCT ?d \n" +
-                "WHERE {\n" +
-                "  ?d rdf:type owl:Class .\n" +
-                "  ?d rdfs:label ?dName .\n" +
-                "  ?d rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "} \n";
-        Set<Resource> out = this.executeSimpleSparql(mondoModel, query);
-        System.out.println("Count of all disease nodes: " + out.size());
+    public void countMondoXrefs(Model mondoModel) throws Exception {
+
+        XrefProfiler profile = XrefProfiler.profile(mondoModel);
+        for(String s : profile.getSources()) {
+            System.out.println("Count of all disease nodes with " + s + ": " + profile.count(s));
+        }
+        System.out.println("Count of all disease nodes: " + profile.getDiseases().cardinality());
     }
 
     public void queryDiseases(File mondoFile, String outstem) throws Exception {
 
-        Model mondoModel = ModelFactory.createDefaultModel();
-        mondoModel.read(new FileInputStream(mondoFile), null, "TTL");
+        this.queryDiseases(mondoFile, outstem, Runtime.getRuntime().availableProcessors(), false);
 
-        /* Get all disease nodes with additional information */
-        String q0 = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
-                "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
-                "PREFIX oboInOwl: <http://www.geneontology.org/formats/oboInOwl#>\n" +
-                "SELECT DISTINCT ?mondo_id ?name\n" +
-                "WHERE {\n" +
-                "  ?mondo_id rdf:type owl:Class .\n" +
-                "  ?mondo_id rdfs:label ?name .\n" +
-                "  ?mondo_id rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "} \n";
-        String[] q0_rcols = new String[] {"mondo_id"};
-        String[] q0_lcols = new String[] {"name"};
+    }
 
-        /* Get all disease nodes with additional information */
-        String q1 = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
-                "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
-                "PREFIX oboInOwl: <http://www.geneontology.org/formats/oboInOwl#>\n" +
-                "SELECT DISTINCT ?mondo_id ?name ?parent_id ?parent_name\n" +
-                "WHERE {\n" +
-                "  ?mondo_id rdf:type owl:Class .\n" +
-                "  ?mondo_id rdfs:label ?name .\n" +
-                "  ?mondo_id rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "  ?mondo_id rdfs:subClassOf ?parent_id .\n" +
-                "  ?parent_id rdfs:label ?parent_name .\n" +
-                "} \n";
-        String[] q1_rcols = new String[] {"mondo_id", "parent_id"};
-        String[] q1_lcols = new String[] {"name", "parent_name"};
+    public void queryDiseases(File mondoFile, String outstem, int threads, boolean gzip) throws Exception {
 
-        String q2 = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
-                "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
-                "PREFIX oboInOwl: <http://www.geneontology.org/formats/oboInOwl#>\n" +
-                "SELECT DISTINCT ?mondo_id ?xref \n" +
-                "WHERE {\n" +
-                "  ?mondo_id rdf:type owl:Class .\n" +
-                "  ?mondo_id rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "  ?mondo_id skos:exactMatch ?xref \n" +
-                "} \n";
-        String[] q2_rcols = new String[] {"mondo_id", "xref"};
-        String[] q2_lcols = new String[] {};
+        if( this.writeCachedTables(mondoFile, outstem, gzip) )
+            return;
+        Model mondoModel = OntologyLoader.loadMondo(mondoFile);
+        this.queryDiseases(mondoModel, outstem, threads, gzip, null);
 
-        String q3 = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
-                "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
-                "PREFIX oboInOwl: <http://www.geneontology.org/formats/oboInOwl#>\n" +
-                "SELECT DISTINCT ?mondo_id ?synonym\n" +
-                "WHERE {\n" +
-                "  ?mondo_id rdf:type owl:Class .\n" +
-                "  ?mondo_id rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "  ?mondo_id oboInOwl:hasExactSynonym ?synonym \n" +
-                "} \n";
-        String[] q3_rcols = new String[] {"mondo_id"};
-        String[] q3_lcols = new String[] {"synonym"};
+    }
 
+    public void queryDiseases(Model mondoModel, String outstem) throws Exception {
 
-        String q4 = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
-                "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
-                "PREFIX oboInOwl: <http://www.geneontology.org/formats/oboInOwl#>\n" +
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
-                "SELECT DISTINCT ?mondo_id \n" +
-                "WHERE {\n" +
-                "  ?mondo_id rdf:type owl:Class .\n" +
-                "  ?mondo_id rdfs:label ?dName .\n" +
-                "  ?mondo_id rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "  ?mondo_id rdfs:subClassOf+ ?t .\n" +
-                "  ?t rdf:type owl:Restriction .\n" +
-                "  ?t owl:onProperty obo:RO_0002573 .\n" +
-                "  ?t owl:someValuesFrom obo:MONDO_0021136 .\n" +
-                "} \n";
-        String[] q4_rcols = new String[] {"mondo_id"};
-        String[] q4_lcols = new String[] {};
+        this.queryDiseases(mondoModel, outstem, Runtime.getRuntime().availableProcessors(), false, null);
 
-        String q5 = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
-                "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
-                "PREFIX oboInOwl: <http://www.geneontology.org/formats/oboInOwl#>\n" +
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
-                "SELECT DISTINCT ?mondo_id \n" +
-                "WHERE {\n" +
-                "  ?mondo_id rdf:type owl:Class .\n" +
-                "  ?mondo_id rdfs:label ?dName .\n" +
-                "  ?mondo_id rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "  ?mondo_id rdfs:subClassOf+ ?t .\n" +
-                "  ?t rdf:type owl:Restriction .\n" +
-                "  ?t owl:onProperty obo:RO_0002573 .\n" +
-                "  ?t owl:someValuesFrom obo:MONDO_0021136 .\n" +
-                "} \n";
-        String[] q5_rcols = new String[] {"mondo_id"};
-        String[] q5_lcols = new String[] {};
+    }
+
+    /**
+     * @param store the store mondoModel belongs to, or null for an in-memory model
+     */
+    public void queryDiseases(Model mondoModel, String outstem, int threads, boolean gzip, OntologyStore store)
+            throws Exception {
 
         /* QUERY TO DETECT SIMPLE SUBTYPES OF DISEASES. NO REASON TO EXCLUDE THESE.
+           (sparql/mondo-numbered-subtypes.rq runs it with a meta:textQuery probe per parent label.)
         String q5 = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
                 "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
                 "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
                 "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
                 "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
+                "PREFIX meta: <http://meta.org/fn#>\n" +
                 "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
                 "SELECT DISTINCT ?d ?dName ?p ?pName\n" +
                 "WHERE {\n" +
                 "  ?d rdf:type owl:Class .\n" +
                 "  ?d rdfs:label ?dName .\n" +
-                "  ?d rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
+                "  ?d meta:descendantOf obo:MONDO_0000001 .\n" +
                 "  ?d rdfs:subClassOf ?p .\n" +
                 "  ?p rdfs:label ?pName .\n" +
                 "  filter( regex(?dName, CONCAT(STR(?pName), \" [0-9]+\"))).\n" +
@@ -239,67 +118,175 @@ public class Extract_MONDO_Diseases {
         String[] q5_lcols = new String[] {"dName", "pName"};
         */
 
-        String[] names = new String[] {"disease", "parent", "xref", "synonym", "rare"};
-        String[] queries = new String[] {q0, q1, q2, q3, q4};
-        String[][] resources = new String[][] {q0_rcols, q1_rcols, q2_rcols, q3_rcols, q4_rcols};
-        String[][] literals = new String[][] {q0_lcols, q1_lcols, q2_lcols, q3_lcols, q4_lcols};
-        List<List<Map<String,String>>> output = new ArrayList<List<Map<String,String>>>();
-        for(int i=0; i<queries.length; i++ ) {
-            String q = queries[i];
-            String[] rr = resources[i];
-            String[] ll = literals[i];
-            Query query1 = QueryFactory.create(q);
-            QueryExecution qexec1 = QueryExecutionFactory.create(query1, mondoModel);
-            ResultSet results1 = qexec1.execSelect();
-            List<Map<String,String>> datalist = new ArrayList<>();
-            System.out.println(q);
-            for (; results1.hasNext(); ) {
-                QuerySolution soln = results1.nextSolution();
-                Map<String,String> datamap = new HashMap<String, String>();
-                for(String r : rr) {
-                    Resource res = soln.getResource(r);
-                    datamap.put(r,res.toString());
-                }
-                for(String l : ll) {
-                    Literal lit = soln.getLiteral(l);
-                    datamap.put(l,lit.toString());
-                }
-                datalist.add(datamap);
-            }
-            output.add(datalist);
+        // sparql/extract-NAME.rq, one per table
+        String[] names = DiseaseTableExtractor.NAMES;
+        QueryRegistry.Prepared[] queries = new QueryRegistry.Prepared[names.length];
+        for(int i=0; i<names.length; i++ ) {
+            queries[i] = QueryRegistry.get("extract-" + names[i]);
         }
 
+        //
+        // The queries are independent and only read the model, so they run side by side under a shared read
+        // lock. Each one writes its TSV as soon as it is done.
+        //
+        long startTime = System.currentTimeMillis();
+        int workers = Math.max(1, Math.min(threads, queries.length));
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<Long>> timings = new ArrayList<Future<Long>>();
         for(int i=0; i<queries.length; i++ ) {
             String n = names[i];
-            List<Map<String,String>> l = output.get(i);
-
-            List<String> headings = new ArrayList<String>(l.get(0).keySet());
-            Collections.sort(headings);
-
-            FileWriter w = new FileWriter(outstem + n + ".tsv");
-            w.write(String.join("\t", headings));
-            w.write("\n");
-            for(Map<String,String> data: l) {
-                List<String> line_data = new ArrayList<>();
-                for(String key: headings) {
-                    line_data.add(data.get(key));
-                }
-                w.write(String.join("\t", line_data));
-                w.write("\n");
+            QueryRegistry.Prepared q = queries[i];
+            timings.add(pool.submit(() -> this.runQuery(mondoModel, store, n, q, outstem, gzip)));
+        }
+        pool.shutdown();
+        try {
+            for(int i=0; i<queries.length; i++ ) {
+                System.out.println("Query " + names[i] + " took " + timings.get(i).get() + " ms");
+            }
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            throw new IOException("Query failed", e.getCause());
+        }
+        System.out.println("Extracted " + queries.length + " tables with " + workers + " threads in " +
+                (System.currentTimeMillis() - startTime) + " ms");
+
+    }
+
+    /**
+     * Writes the five tables straight from the QueryResultCache, without loading MONDO, if all of them are
+     * cached for this release of mondoFile.
+     * @return false (and nothing written) unless every table was cached
+     */
+    boolean writeCachedTables(File mondoFile, String outstem, boolean gzip) throws IOException {
+
+        QueryResultCache cache = QueryResultCache.shared();
+        String fingerprint = OntologyLoader.mondoFingerprint(mondoFile);
+        if( cache == null || fingerprint == null )
+            return false;
+        String[] names = DiseaseTableExtractor.NAMES;
+        ResultSet[] results = new ResultSet[names.length];
+        for(int i=0; i<names.length; i++ ) {
+            results[i] = cache.lookup(QueryRegistry.get("extract-" + names[i]).cacheKey(fingerprint, null));
+            if( results[i] == null ) {
+                for( int j = 0; j < i; j++ )
+                    QueryResultCache.close(results[j]);
+                return false;
+            }
+        }
+        for(int i=0; i<names.length; i++ ) {
+            try (TsvResultSink sink = new TsvResultSink(TsvResultSink.fileFor(outstem, names[i], gzip), gzip)) {
+                System.out.println("Wrote " + sink.write(results[i]) + " " + names[i] + " rows from the result cache");
             }
-            w.close();
+        }
+        return true;
+
+    }
+
+    /**
+     * Writes the same five tables as queryDiseases in a single pass over the disease classes, without SPARQL.
+     */
+    public void extractDiseases(Model mondoModel, String outstem, boolean gzip) throws IOException {
+
+        mondoModel.enterCriticalSection(Lock.READ);
+        try {
+            new DiseaseTableExtractor(mondoModel).extract(outstem, gzip);
+        } finally {
+            mondoModel.leaveCriticalSection();
         }
 
     }
 
+    /**
+     * Runs both engines into outstem + "sparql." and outstem + "native." and checks that every table holds
+     * the same rows (order aside).
+     * @return true if all tables match
+     */
+    public boolean verifyEngines(Model mondoModel, String outstem, int threads, OntologyStore store)
+            throws Exception {
+
+        this.queryDiseases(mondoModel, outstem + "sparql.", threads, false, store);
+        this.extractDiseases(mondoModel, outstem + "native.", false);
+        boolean same = true;
+        for( String n : DiseaseTableExtractor.NAMES ) {
+            List<String> a = sortedLines(TsvResultSink.fileFor(outstem + "sparql.", n, false));
+            List<String> b = sortedLines(TsvResultSink.fileFor(outstem + "native.", n, false));
+            boolean match = a.equals(b);
+            System.out.println("Table " + n + ": " + a.size() + " / " + b.size() + " lines, " +
+                    (match ? "identical" : "DIFFERENT"));
+            same &= match;
+        }
+        return same;
+
+    }
+
+    private static List<String> sortedLines(File f) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"))) {
+            String line;
+            while( (line = r.readLine()) != null )
+                lines.add(line);
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+
+    /**
+     * Runs one extraction query and streams its rows to outstem + n + ".tsv" (".tsv.gz" when gzip is set).
+     * @return elapsed milliseconds
+     */
+    private long runQuery(Model mondoModel, OntologyStore store, String n, QueryRegistry.Prepared q, String outstem,
+                          boolean gzip)
+            throws IOException {
+
+        long startTime = System.currentTimeMillis();
+        long rows;
+
+        // TDB2 read transactions belong to a thread, so each worker opens its own
+        if( store != null )
+            store.begin();
+        mondoModel.enterCriticalSection(Lock.READ);
+        try (TsvResultSink sink = new TsvResultSink(TsvResultSink.fileFor(outstem, n, gzip), gzip)) {
+            rows = sink.write(q.select(mondoModel));
+        } finally {
+            mondoModel.leaveCriticalSection();
+            if( store != null )
+                store.end();
+        }
+
+        System.out.println("Wrote " + rows + " " + n + " rows");
+        return System.currentTimeMillis() - startTime;
+
+    }
+
     public static class Options {
 
-        @Option(name = "-mondoFile", usage = "MONDO File", required = true, metaVar = "MONDO-FILE")
+        @Option(name = "-mondoFile", usage = "MONDO File", required = false, metaVar = "MONDO-FILE")
         public File mondoFile;
 
+        @Option(name = "-storeDir", usage = "TDB2 Store Directory (instead of -mondoFile)", required = false, metaVar = "STORE-DIR")
+        public File storeDir;
+
         @Option(name = "-outStem", usage = "Output Stem", required = true, metaVar = "MONDO-FILE")
         public String outStem;
 
+        @Option(name = "-cacheDir", usage = "Parsed Snapshot Cache Directory", required = false, metaVar = "CACHE-DIR")
+        public File cacheDir;
+
+        @Option(name = "-lang", usage = "Keep only MONDO literals in these languages (e.g. en)", required = false, metaVar = "LANGS")
+        public String lang;
+
+        @Option(name = "-gzip", usage = "Write gzip compressed TSV files", required = false)
+        public boolean gzip = false;
+
+        @Option(name = "-threads", usage = "Queries run at once (default: all cores)", required = false, metaVar = "THREADS")
+        public int threads = Runtime.getRuntime().availableProcessors();
+
+        @Option(name = "-engine", usage = "Extraction engine: sparql (default) or native (same rows, different order)", required = false, metaVar = "ENGINE")
+        public String engine = "sparql";
+
+        @Option(name = "-verify", usage = "Run both engines and compare their tables", required = false)
+        public boolean verify = false;
+
     }
 
     /**
@@ -317,6 +304,12 @@ public class Extract_MONDO_Diseases {
         try {
 
             parser.parseArgument(args);
+            if( options.mondoFile == null && options.storeDir == null ) {
+                throw new CmdLineException(parser, "One of -mondoFile or -storeDir is required");
+            }
+            if( !options.engine.equals("native") && !options.engine.equals("sparql") ) {
+                throw new CmdLineException(parser, "-engine must be sparql or native");
+            }
 
         } catch (CmdLineException e) {
 
@@ -325,12 +318,42 @@ public class Extract_MONDO_Diseases {
             parser.printSingleLineUsage(System.err);
             System.err.println("\n\n Options: \n");
             parser.printUsage(System.err);
-            System.exit(-1);
+            OntologyDaemon.exit(-1);
 
         }
 
+        OntologyLoader.setCacheDir(options.cacheDir);
+        OntologyLoader.setLanguages(options.lang);
+
         Extract_MONDO_Diseases mid = new Extract_MONDO_Diseases();
-        mid.queryDiseases(options.mondoFile, options.outStem);
+        if( options.storeDir == null && !options.verify && options.engine.equals("sparql") ) {
+            // loads MONDO only if the tables are not in the result cache
+            mid.queryDiseases(options.mondoFile, options.outStem, options.threads, options.gzip);
+            return;
+        }
+        OntologyStore store = null;
+        Model mondoModel;
+        if( options.storeDir != null ) {
+            store = OntologyStore.open(options.storeDir);
+            store.begin();
+            mondoModel = store.getMondoModel();
+        } else {
+            mondoModel = OntologyLoader.loadMondo(options.mondoFile);
+        }
+        boolean ok = true;
+        try {
+            if( options.verify )
+                ok = mid.verifyEngines(mondoModel, options.outStem, options.threads, store);
+            else if( options.engine.equals("sparql") )
+                mid.queryDiseases(mondoModel, options.outStem, options.threads, options.gzip, store);
+            else
+                mid.extractDiseases(mondoModel, options.outStem, options.gzip);
+        } finally {
+            if( store != null )
+                store.end();
+        }
+        if( !ok )
+            OntologyDaemon.exit(1);
 
     }
 }
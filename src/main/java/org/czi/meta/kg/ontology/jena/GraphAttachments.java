@@ -0,0 +1,85 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.graph.Graph;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Data derived from a graph (the indexes behind the meta: property functions), built once per graph and
+ * kept for as long as the graph is.
+ *
+ * Property functions look their index up on every evaluation, so lookups of a built index take no lock
+ * when they are for the graph looked up last, and only the short lock of the graph map otherwise. Each graph
+ * is built under a future of its own: threads asking for the same graph wait for the one building it, and
+ * queries over graphs whose index is ready never wait for a build.
+ */
+class GraphAttachments<T> {
+
+    interface Builder<T> {
+        T build(Graph graph) throws IOException;
+    }
+
+    static final class Last<T> {
+        final WeakReference<Graph> graph;
+        final T value;
+
+        Last(Graph graph, T value) {
+            this.graph = new WeakReference<Graph>(graph);
+            this.value = value;
+        }
+    }
+
+    final Map<Graph, CompletableFuture<T>> attached = Collections.synchronizedMap(new WeakHashMap<Graph, CompletableFuture<T>>());
+    volatile Last<T> last = null;
+
+    /**
+     * @return the value attached to graph, building it with builder on first use
+     */
+    T get(Graph graph, Builder<T> builder) throws IOException {
+        Last<T> last = this.last;
+        if( last != null && last.graph.get() == graph )
+            return last.value;
+
+        CompletableFuture<T> attached = this.attached.get(graph);
+        if( attached == null ) {
+            CompletableFuture<T> building = new CompletableFuture<T>();
+            attached = this.attached.putIfAbsent(graph, building);
+            if( attached == null ) {
+                try {
+                    building.complete(builder.build(graph));
+                } catch (IOException | RuntimeException | Error e) {
+                    this.attached.remove(graph, building);
+                    building.completeExceptionally(e);
+                    throw e;
+                }
+                attached = building;
+            }
+        }
+
+        T value;
+        try {
+            value = attached.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if( cause instanceof IOException )
+                throw new IOException(cause.getMessage(), cause);
+            if( cause instanceof RuntimeException )
+                throw (RuntimeException) cause;
+            if( cause instanceof Error )
+                throw (Error) cause;
+            throw new UncheckedIOException(new IOException(cause));
+        }
+        this.last = new Last<T>(graph, value);
+        return value;
+    }
+}
@@ -0,0 +1,347 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.vocabulary.RDFS;
+
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/**
+ * Compact, read-only copy of a class hierarchy (rdfs:subClassOf in MONDO, meshv:broader in MeSH).
+ *
+ * Every IRI taking part in the relation gets a dense int id, in sorted IRI order, and the parent and child
+ * adjacency lists are stored as CSR arrays: the parents of node i are
+ * parentTargets[parentOffsets[i] .. parentOffsets[i+1]-1], and likewise for children. Blank nodes (e.g.
+ * subClassOf restrictions) are left out.
+ *
+ * Walking the hierarchy goes through a Traversal, which owns its queue and visited marks and reuses them,
+ * so repeated ancestor / descendant walks do not allocate. A Traversal is not thread safe; give each thread
+ * its own.
+ */
+public class HierarchyIndex {
+
+    public static String MESHV_URI = "http://id.nlm.nih.gov/mesh/vocab#";
+    public static String OBO_URI = "http://purl.obolibrary.org/obo/";
+
+    String[] iris;
+    Map<String, Integer> ids;
+
+    int[] parentOffsets;
+    int[] parentTargets;
+    int[] childOffsets;
+    int[] childTargets;
+
+    HierarchyIndex(String[] iris, int[] parentOffsets, int[] parentTargets, int[] childOffsets, int[] childTargets) {
+        this.iris = iris;
+        this.ids = new HashMap<String, Integer>(iris.length * 2);
+        for( int i = 0; i < iris.length; i++ )
+            this.ids.put(iris[i], i);
+        this.parentOffsets = parentOffsets;
+        this.parentTargets = parentTargets;
+        this.childOffsets = childOffsets;
+        this.childTargets = childTargets;
+    }
+
+    public static HierarchyIndex subClassOf(Model model) {
+        return subClassOf(model.getGraph());
+    }
+
+    public static HierarchyIndex subClassOf(Graph graph) {
+        return build(graph, RDFS.Nodes.subClassOf);
+    }
+
+    public static HierarchyIndex meshBroader(Model model) {
+        return build(model.getGraph(), NodeFactory.createURI(MESHV_URI + "broader"));
+    }
+
+    /**
+     * @param relation a child-to-parent predicate; (s relation o) makes o a parent of s
+     */
+    public static HierarchyIndex build(Graph graph, Node relation) {
+        long startTime = System.currentTimeMillis();
+
+        List<Triple> edges = new ArrayList<Triple>();
+        Set<String> names = new HashSet<String>();
+        ExtendedIterator<Triple> it = graph.find(Node.ANY, relation, Node.ANY);
+        while( it.hasNext() ) {
+            Triple t = it.next();
+            if( !t.getSubject().isURI() || !t.getObject().isURI() )
+                continue;
+            edges.add(t);
+            names.add(t.getSubject().getURI());
+            names.add(t.getObject().getURI());
+        }
+
+        String[] iris = names.toArray(new String[0]);
+        Arrays.sort(iris);
+        Map<String, Integer> ids = new HashMap<String, Integer>(iris.length * 2);
+        for( int i = 0; i < iris.length; i++ )
+            ids.put(iris[i], i);
+
+        int[] child = new int[edges.size()];
+        int[] parent = new int[edges.size()];
+        for( int e = 0; e < edges.size(); e++ ) {
+            child[e] = ids.get(edges.get(e).getSubject().getURI());
+            parent[e] = ids.get(edges.get(e).getObject().getURI());
+        }
+
+        int[] parentOffsets = new int[iris.length + 1];
+        int[] parentTargets = new int[edges.size()];
+        fill(child, parent, parentOffsets, parentTargets);
+        int[] childOffsets = new int[iris.length + 1];
+        int[] childTargets = new int[edges.size()];
+        fill(parent, child, childOffsets, childTargets);
+
+        HierarchyIndex index = new HierarchyIndex(iris, parentOffsets, parentTargets, childOffsets, childTargets);
+        System.err.println("Indexed " + edges.size() + " <" + relation.getURI() + "> edges between " +
+                iris.length + " classes in " + (System.currentTimeMillis() - startTime) + " ms");
+        return index;
+    }
+
+    //
+    // Counting sort of the (from, to) edge list into CSR form, each row sorted by target id.
+    //
+    private static void fill(int[] from, int[] to, int[] offsets, int[] targets) {
+        for( int f : from )
+            offsets[f + 1]++;
+        for( int i = 1; i < offsets.length; i++ )
+            offsets[i] += offsets[i - 1];
+        int[] next = Arrays.copyOf(offsets, offsets.length - 1);
+        for( int e = 0; e < from.length; e++ )
+            targets[next[from[e]]++] = to[e];
+        for( int i = 0; i < offsets.length - 1; i++ )
+            Arrays.sort(targets, offsets[i], offsets[i + 1]);
+    }
+
+    public int size() {
+        return this.iris.length;
+    }
+
+    public int edgeCount() {
+        return this.parentTargets.length;
+    }
+
+    /**
+     * @return the id of iri, or -1 if it does not take part in the hierarchy
+     */
+    public int id(String iri) {
+        Integer id = this.ids.get(iri);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Like id(), but also accepts OBO CURIEs (MONDO:0000001 or MONDO_0000001).
+     */
+    public int resolve(String term) {
+        term = term.trim();
+        int id = this.id(term);
+        if( id < 0 && !term.startsWith("http") )
+            id = this.id(OBO_URI + term.replace(':', '_'));
+        return id;
+    }
+
+    public String iri(int id) {
+        return this.iris[id];
+    }
+
+    public int parentCount(int id) {
+        return this.parentOffsets[id + 1] - this.parentOffsets[id];
+    }
+
+    public int parent(int id, int i) {
+        return this.parentTargets[this.parentOffsets[id] + i];
+    }
+
+    public int childCount(int id) {
+        return this.childOffsets[id + 1] - this.childOffsets[id];
+    }
+
+    public int child(int id, int i) {
+        return this.childTargets[this.childOffsets[id] + i];
+    }
+
+    public boolean isRoot(int id) {
+        return this.parentCount(id) == 0;
+    }
+
+    public boolean isLeaf(int id) {
+        return this.childCount(id) == 0;
+    }
+
+    /**
+     * Kahn's algorithm from the roots down, so every class comes after its parents. Classes left over on
+     * cycles are appended in id order.
+     * @return ids in topological order
+     */
+    public int[] topologicalOrder() {
+        int n = this.size();
+        int[] order = new int[n];
+        boolean[] placed = new boolean[n];
+        int[] pending = new int[n];
+        int head = 0;
+        int tail = 0;
+        for( int v = 0; v < n; v++ ) {
+            pending[v] = this.parentCount(v);
+            if( pending[v] == 0 )
+                order[tail++] = v;
+        }
+        while( true ) {
+            while( head < tail ) {
+                int v = order[head++];
+                placed[v] = true;
+                for( int k = 0; k < this.childCount(v); k++ ) {
+                    int c = this.child(v, k);
+                    if( --pending[c] == 0 )
+                        order[tail++] = c;
+                }
+            }
+            if( tail == n )
+                return order;
+            for( int v = 0; v < n; v++ ) {
+                if( !placed[v] && pending[v] > 0 ) {
+                    pending[v] = 0;
+                    order[tail++] = v;
+                    break;
+                }
+            }
+        }
+    }
+
+    public Traversal newTraversal() {
+        return new Traversal();
+    }
+
+    /**
+     * Reusable breadth-first walker. After a walk, result(0 .. count-1) holds the nodes reached (the start
+     * node excluded) in visiting order and depth(id) their hop distance from the start.
+     */
+    public class Traversal {
+
+        int[] queue = new int[iris.length];
+        int[] depth = new int[iris.length];
+        int[] mark = new int[iris.length];
+        int[] expanded = new int[iris.length];
+        int epoch = 0;
+        int count = 0;
+        int expandedCount = 0;
+
+        private void reset() {
+            if( ++this.epoch == Integer.MAX_VALUE ) {
+                Arrays.fill(this.mark, 0);
+                this.epoch = 1;
+            }
+            this.count = 0;
+            this.expandedCount = 0;
+        }
+
+        public int ancestors(int start) {
+            return this.walk(start, true, null);
+        }
+
+        /**
+         * Walks up from start; nodes reached that fail the expand test are reported but not walked above.
+         * The start node is always expanded.
+         */
+        public int ancestors(int start, IntPredicate expand) {
+            return this.walk(start, true, expand);
+        }
+
+        public int descendants(int start) {
+            return this.walk(start, false, null);
+        }
+
+        public int descendants(int start, IntPredicate expand) {
+            return this.walk(start, false, expand);
+        }
+
+        /**
+         * @return true if ancestor can be reached from descendant through one or more parent steps
+         */
+        public boolean isAncestor(int ancestor, int descendant) {
+            this.reset();
+            int head = 0, tail = 0;
+            this.mark[descendant] = this.epoch;
+            this.queue[tail++] = descendant;
+            while( head < tail ) {
+                int n = this.queue[head++];
+                for( int k = parentOffsets[n]; k < parentOffsets[n + 1]; k++ ) {
+                    int p = parentTargets[k];
+                    if( p == ancestor )
+                        return true;
+                    if( this.mark[p] != this.epoch ) {
+                        this.mark[p] = this.epoch;
+                        this.queue[tail++] = p;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private int walk(int start, boolean up, IntPredicate expand) {
+            this.reset();
+            int[] offsets = up ? parentOffsets : childOffsets;
+            int[] targets = up ? parentTargets : childTargets;
+
+            this.mark[start] = this.epoch;
+            this.depth[start] = 0;
+            int head = 0;
+            int tail = 0;
+            this.expanded[this.expandedCount++] = start;
+            int n = start;
+            while( true ) {
+                for( int k = offsets[n]; k < offsets[n + 1]; k++ ) {
+                    int t = targets[k];
+                    if( this.mark[t] == this.epoch )
+                        continue;
+                    this.mark[t] = this.epoch;
+                    this.depth[t] = this.depth[n] + 1;
+                    this.queue[tail++] = t;
+                }
+                do {
+                    if( head == tail ) {
+                        this.count = tail;
+                        return tail;
+                    }
+                    n = this.queue[head++];
+                } while( expand != null && !expand.test(n) );
+                this.expanded[this.expandedCount++] = n;
+            }
+        }
+
+        public int count() {
+            return this.count;
+        }
+
+        public int result(int i) {
+            return this.queue[i];
+        }
+
+        /**
+         * @return hop distance from the start of the last walk, valid for nodes it reached
+         */
+        public int depth(int id) {
+            return this.depth[id];
+        }
+
+        public boolean reached(int id) {
+            return this.mark[id] == this.epoch;
+        }
+
+        /**
+         * Nodes whose parents (or children) were followed in the last walk: the start node plus every
+         * reached node that passed the expand test.
+         */
+        public int expandedCount() {
+            return this.expandedCount;
+        }
+
+        public int expanded(int i) {
+            return this.expanded[i];
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.vocabulary.OWL;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Versioned binary file holding an extracted hierarchy (MONDO or MeSH) with its labels, xrefs and
+ * synonyms, read in place through a read-only memory mapping.
+ *
+ * Layout (all ints big-endian):
+ *   header   magic, version, node count, edge count, section count, section offsets
+ *   IRI      string list of node IRIs, in HierarchyIndex id order
+ *   ORDER    node ids sorted by the UTF-8 bytes of their IRI, for binary search lookups
+ *   FLAGS    one byte per node (FLAG_CLASS when typed owl:Class)
+ *   CSR      parent offsets, parent targets, child offsets, child targets
+ *   LABELS, XREFS, SYNONYMS   per-node row offsets into a string list
+ * A string list is a count, count+1 byte offsets and the concatenated UTF-8 bytes.
+ *
+ * Opening a snapshot only maps the file; nothing is deserialized, so short jobs start without parsing RDF
+ * and with almost no heap. Files are limited to 2GB, far more than MONDO or MeSH need.
+ */
+public class HierarchySnapshot {
+
+    public static String OBOINOWL_URI = "http://www.geneontology.org/formats/oboInOwl#";
+    public static String SKOS_URI = "http://www.w3.org/2004/02/skos/core#";
+
+    static final int MAGIC = 0x4d48534e;   // "MHSN"
+    static final int VERSION = 1;
+
+    public static final byte FLAG_CLASS = 1;
+
+    static final int IRI = 0, ORDER = 1, FLAGS = 2, PARENT_OFFSETS = 3, PARENT_TARGETS = 4, CHILD_OFFSETS = 5,
+            CHILD_TARGETS = 6, LABEL_ROWS = 7, LABELS = 8, XREF_ROWS = 9, XREFS = 10, SYNONYM_ROWS = 11,
+            SYNONYMS = 12, SECTION_COUNT = 13;
+
+    ByteBuffer buf;
+    int nodeCount;
+    int edgeCount;
+    int[] sections = new int[SECTION_COUNT];
+
+    HierarchySnapshot(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+        if( buf.getInt(0) != MAGIC )
+            throw new IOException("Not a hierarchy snapshot");
+        if( buf.getInt(4) != VERSION )
+            throw new IOException("Hierarchy snapshot version " + buf.getInt(4) + " is not supported (expected " +
+                    VERSION + "); rebuild it");
+        this.nodeCount = buf.getInt(8);
+        this.edgeCount = buf.getInt(12);
+        if( buf.getInt(16) != SECTION_COUNT )
+            throw new IOException("Corrupt hierarchy snapshot header");
+        for( int s = 0; s < SECTION_COUNT; s++ )
+            this.sections[s] = buf.getInt(20 + 4 * s);
+    }
+
+    public static HierarchySnapshot open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new HierarchySnapshot(buf);
+        }
+    }
+
+    public int size() {
+        return this.nodeCount;
+    }
+
+    public int edgeCount() {
+        return this.edgeCount;
+    }
+
+    /**
+     * @return the id of iri, or -1 if it is not in the snapshot
+     */
+    public int id(String iri) {
+        byte[] key = iri.getBytes(StandardCharsets.UTF_8);
+        int order = this.sections[ORDER];
+        int lo = 0;
+        int hi = this.nodeCount - 1;
+        while( lo <= hi ) {
+            int mid = (lo + hi) >>> 1;
+            int id = this.buf.getInt(order + 4 * mid);
+            int c = this.compare(IRI, id, key);
+            if( c < 0 )
+                lo = mid + 1;
+            else if( c > 0 )
+                hi = mid - 1;
+            else
+                return id;
+        }
+        return -1;
+    }
+
+    public String iri(int id) {
+        return this.string(IRI, id);
+    }
+
+    public boolean isClass(int id) {
+        return (this.buf.get(this.sections[FLAGS] + id) & FLAG_CLASS) != 0;
+    }
+
+    public int parentCount(int id) {
+        return this.intAt(PARENT_OFFSETS, id + 1) - this.intAt(PARENT_OFFSETS, id);
+    }
+
+    public int parent(int id, int i) {
+        return this.intAt(PARENT_TARGETS, this.intAt(PARENT_OFFSETS, id) + i);
+    }
+
+    public int childCount(int id) {
+        return this.intAt(CHILD_OFFSETS, id + 1) - this.intAt(CHILD_OFFSETS, id);
+    }
+
+    public int child(int id, int i) {
+        return this.intAt(CHILD_TARGETS, this.intAt(CHILD_OFFSETS, id) + i);
+    }
+
+    public int labelCount(int id) {
+        return this.rowCount(LABEL_ROWS, id);
+    }
+
+    public String label(int id, int i) {
+        return this.string(LABELS, this.intAt(LABEL_ROWS, id) + i);
+    }
+
+    /**
+     * @return the first label of id, or null if it has none
+     */
+    public String label(int id) {
+        return this.labelCount(id) == 0 ? null : this.label(id, 0);
+    }
+
+    public int xrefCount(int id) {
+        return this.rowCount(XREF_ROWS, id);
+    }
+
+    public String xref(int id, int i) {
+        return this.string(XREFS, this.intAt(XREF_ROWS, id) + i);
+    }
+
+    public int synonymCount(int id) {
+        return this.rowCount(SYNONYM_ROWS, id);
+    }
+
+    public String synonym(int id, int i) {
+        return this.string(SYNONYMS, this.intAt(SYNONYM_ROWS, id) + i);
+    }
+
+    /**
+     * @return ids of every strict descendant of id, in ascending id order
+     */
+    public int[] descendants(int id) {
+        BitSet seen = new BitSet(this.nodeCount);
+        int[] stack = new int[this.nodeCount];
+        int top = 0;
+        seen.set(id);
+        stack[top++] = id;
+        while( top > 0 ) {
+            int v = stack[--top];
+            for( int k = 0; k < this.childCount(v); k++ ) {
+                int c = this.child(v, k);
+                if( !seen.get(c) ) {
+                    seen.set(c);
+                    stack[top++] = c;
+                }
+            }
+        }
+        seen.clear(id);
+        return seen.stream().toArray();
+    }
+
+    private int intAt(int section, int i) {
+        return this.buf.getInt(this.sections[section] + 4 * i);
+    }
+
+    private int rowCount(int rows, int id) {
+        return this.intAt(rows, id + 1) - this.intAt(rows, id);
+    }
+
+    //
+    // String list access: [count][count+1 offsets][bytes]
+    //
+    private String string(int section, int i) {
+        int base = this.sections[section];
+        int count = this.buf.getInt(base);
+        int bytes = base + 4 + 4 * (count + 1);
+        int start = this.buf.getInt(base + 4 + 4 * i);
+        int end = this.buf.getInt(base + 4 + 4 * (i + 1));
+        byte[] b = new byte[end - start];
+        for( int k = 0; k < b.length; k++ )
+            b[k] = this.buf.get(bytes + start + k);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private int compare(int section, int i, byte[] key) {
+        int base = this.sections[section];
+        int count = this.buf.getInt(base);
+        int bytes = base + 4 + 4 * (count + 1);
+        int start = this.buf.getInt(base + 4 + 4 * i);
+        int end = this.buf.getInt(base + 4 + 4 * (i + 1));
+        int len = end - start;
+        for( int k = 0; k < len && k < key.length; k++ ) {
+            int c = (this.buf.get(bytes + start + k) & 0xff) - (key[k] & 0xff);
+            if( c != 0 )
+                return c;
+        }
+        return len - key.length;
+    }
+
+    public static void writeMondo(Model mondoModel, File out) throws IOException {
+        write(mondoModel.getGraph(), HierarchyIndex.subClassOf(mondoModel), RDFS.Nodes.label,
+                NodeFactory.createURI(SKOS_URI + "exactMatch"), NodeFactory.createURI(OBOINOWL_URI + "hasExactSynonym"), out);
+    }
+
+    /**
+     * meshv:broader is only implied by the MeSH data (through broaderDescriptor etc.), so it is
+     * materialized first.
+     */
+    public static void writeMesh(Model meshModel, File out) throws IOException {
+        Model schema = BundledDocuments.load(BundledDocuments.MESHV_URI);
+        Model data = new MeshVocabularyMaterializer(schema).materialize(meshModel);
+        write(data.getGraph(), HierarchyIndex.meshBroader(data), RDFS.Nodes.label, null, null, out);
+    }
+
+    /**
+     * Writes the hierarchy and, for each of its nodes, the values of the label, xref and synonym predicates
+     * (any of which may be null). Literals are stored by lexical form, IRIs as is.
+     */
+    public static void write(Graph graph, HierarchyIndex h, Node labelP, Node xrefP, Node synonymP, File out)
+            throws IOException {
+        long startTime = System.currentTimeMillis();
+        int n = h.size();
+
+        List<byte[]> iriBytes = new ArrayList<byte[]>(n);
+        for( int i = 0; i < n; i++ )
+            iriBytes.add(h.iri(i).getBytes(StandardCharsets.UTF_8));
+        Integer[] order = new Integer[n];
+        for( int i = 0; i < n; i++ )
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> compareBytes(iriBytes.get(a), iriBytes.get(b)));
+
+        byte[] flags = new byte[n];
+        for( int i = 0; i < n; i++ )
+            if( graph.contains(NodeFactory.createURI(h.iri(i)), RDF.Nodes.type, OWL.Class.asNode()) )
+                flags[i] |= FLAG_CLASS;
+
+        ByteArrayOutputStream[] parts = new ByteArrayOutputStream[SECTION_COUNT];
+        for( int s = 0; s < SECTION_COUNT; s++ )
+            parts[s] = new ByteArrayOutputStream();
+
+        writeStrings(parts[IRI], iriBytes);
+        DataOutputStream o = new DataOutputStream(parts[ORDER]);
+        for( Integer id : order )
+            o.writeInt(id);
+        parts[FLAGS].write(flags);
+        writeInts(parts[PARENT_OFFSETS], h.parentOffsets);
+        writeInts(parts[PARENT_TARGETS], h.parentTargets);
+        writeInts(parts[CHILD_OFFSETS], h.childOffsets);
+        writeInts(parts[CHILD_TARGETS], h.childTargets);
+        writeTable(graph, h, labelP, parts[LABEL_ROWS], parts[LABELS]);
+        writeTable(graph, h, xrefP, parts[XREF_ROWS], parts[XREFS]);
+        writeTable(graph, h, synonymP, parts[SYNONYM_ROWS], parts[SYNONYMS]);
+
+        File tmp = new File(out.getPath() + ".tmp");
+        try (DataOutputStream w = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            w.writeInt(MAGIC);
+            w.writeInt(VERSION);
+            w.writeInt(n);
+            w.writeInt(h.edgeCount());
+            w.writeInt(SECTION_COUNT);
+            int offset = 20 + 4 * SECTION_COUNT;
+            for( int s = 0; s < SECTION_COUNT; s++ ) {
+                w.writeInt(offset);
+                offset += parts[s].size();
+            }
+            for( int s = 0; s < SECTION_COUNT; s++ )
+                parts[s].writeTo(w);
+        }
+        Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        System.err.println("Wrote hierarchy snapshot of " + n + " nodes (" + out.length() + " bytes) to " +
+                out.getPath() + " in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    private static void writeTable(Graph graph, HierarchyIndex h, Node predicate, ByteArrayOutputStream rows,
+                                   ByteArrayOutputStream strings) throws IOException {
+        int n = h.size();
+        int[] offsets = new int[n + 1];
+        List<byte[]> values = new ArrayList<byte[]>();
+        for( int i = 0; i < n; i++ ) {
+            offsets[i] = values.size();
+            if( predicate == null )
+                continue;
+            List<String> row = new ArrayList<String>();
+            ExtendedIterator<Triple> it = graph.find(NodeFactory.createURI(h.iri(i)), predicate, Node.ANY);
+            while( it.hasNext() ) {
+                Node o = it.next().getObject();
+                if( o.isLiteral() )
+                    row.add(o.getLiteralLexicalForm());
+                else if( o.isURI() )
+                    row.add(o.getURI());
+            }
+            Collections.sort(row);
+            for( String v : row )
+                values.add(v.getBytes(StandardCharsets.UTF_8));
+        }
+        offsets[n] = values.size();
+        writeInts(rows, offsets);
+        writeStrings(strings, values);
+    }
+
+    private static void writeStrings(ByteArrayOutputStream out, List<byte[]> values) throws IOException {
+        DataOutputStream o = new DataOutputStream(out);
+        o.writeInt(values.size());
+        int offset = 0;
+        o.writeInt(offset);
+        for( byte[] v : values ) {
+            offset += v.length;
+            o.writeInt(offset);
+        }
+        for( byte[] v : values )
+            o.write(v);
+    }
+
+    private static void writeInts(ByteArrayOutputStream out, int[] a) throws IOException {
+        DataOutputStream o = new DataOutputStream(out);
+        for( int v : a )
+            o.writeInt(v);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        for( int k = 0; k < a.length && k < b.length; k++ ) {
+            int c = (a[k] & 0xff) - (b[k] & 0xff);
+            if( c != 0 )
+                return c;
+        }
+        return a.length - b.length;
+    }
+
+    public static class Options {
+
+        @Option(name = "-mondoFile", usage = "MONDO File", required = false, metaVar = "MONDO-FILE")
+        public File mondoFile;
+
+        @Option(name = "-meshFile", usage = "MeSH File", required = false, metaVar = "MESH-FILE")
+        public File meshFile;
+
+        @Option(name = "-snapshotFile", usage = "Output Hierarchy Snapshot File", required = true, metaVar = "SNAPSHOT-FILE")
+        public File snapshotFile;
+
+        @Option(name = "-cacheDir", usage = "Parsed Snapshot Cache Directory", required = false, metaVar = "CACHE-DIR")
+        public File cacheDir;
+
+        @Option(name = "-lang", usage = "Keep only MONDO literals in these languages (e.g. en)", required = false, metaVar = "LANGS")
+        public String lang;
+
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        Options options = new Options();
+
+        CmdLineParser parser = new CmdLineParser(options);
+
+        try {
+
+            parser.parseArgument(args);
+            if( (options.mondoFile == null) == (options.meshFile == null) ) {
+                throw new CmdLineException(parser, "Exactly one of -mondoFile or -meshFile is required");
+            }
+
+        } catch (CmdLineException e) {
+
+            System.err.println(e.getMessage());
+            System.err.print("Arguments: ");
+            parser.printSingleLineUsage(System.err);
+            System.err.println("\n\n Options: \n");
+            parser.printUsage(System.err);
+            System.exit(-1);
+
+        }
+
+        OntologyLoader.setCacheDir(options.cacheDir);
+        OntologyLoader.setLanguages(options.lang);
+
+        if( options.mondoFile != null )
+            writeMondo(OntologyLoader.loadMondo(options.mondoFile), options.snapshotFile);
+        else
+            writeMesh(OntologyLoader.loadMesh(options.meshFile), options.snapshotFile);
+
+    }
+}
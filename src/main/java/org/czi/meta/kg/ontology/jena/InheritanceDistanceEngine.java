@@ -0,0 +1,160 @@
+package org.czi.meta.kg.ontology.jena;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Shortest is-a path length, lowest common ancestor and depth for pairs of classes in a HierarchyIndex.
+ *
+ * An is-a path between two classes goes up from one of them to a shared ancestor and down to the other,
+ * so the search runs upward from both ends and meets at their common ancestors. The upward half for each
+ * class (its ancestors with their hop distances, kept as id-sorted arrays) is computed once and memoized,
+ * which turns every later pair involving that class into a linear merge of two sorted arrays.
+ *
+ * Ancestor maps are immutable once built and are shared between threads; batches of pairs are split
+ * across a ForkJoinPool by PairBatch.
+ */
+public class InheritanceDistanceEngine {
+
+    /**
+     * Ancestors of one class, the class itself included at distance 0, sorted by id.
+     */
+    static final class AncestorMap {
+        final int[] ids;
+        final int[] dist;
+        final int depth;
+
+        AncestorMap(int[] ids, int[] dist, int depth) {
+            this.ids = ids;
+            this.dist = dist;
+            this.depth = depth;
+        }
+    }
+
+    public static final class Result {
+        public final int distance;
+        public final int lca;
+
+        Result(int distance, int lca) {
+            this.distance = distance;
+            this.lca = lca;
+        }
+    }
+
+    static final Result UNRELATED = new Result(-1, -1);
+
+    HierarchyIndex hierarchy;
+    AncestorMap[] memo;
+    ThreadLocal<HierarchyIndex.Traversal> traversals;
+
+    public InheritanceDistanceEngine(HierarchyIndex hierarchy) {
+        this.hierarchy = hierarchy;
+        this.memo = new AncestorMap[hierarchy.size()];
+        this.traversals = ThreadLocal.withInitial(hierarchy::newTraversal);
+    }
+
+    public HierarchyIndex getHierarchy() {
+        return this.hierarchy;
+    }
+
+    //
+    // Two threads may build the same map concurrently; both results are equal and either one is kept.
+    //
+    AncestorMap ancestors(int id) {
+        AncestorMap a = this.memo[id];
+        if( a != null )
+            return a;
+
+        HierarchyIndex.Traversal t = this.traversals.get();
+        int count = t.ancestors(id);
+        long[] packed = new long[count + 1];
+        packed[0] = (long) id << 32;
+        int depth = this.hierarchy.isRoot(id) ? 0 : Integer.MAX_VALUE;
+        for( int i = 0; i < count; i++ ) {
+            int anc = t.result(i);
+            int d = t.depth(anc);
+            packed[i + 1] = ((long) anc << 32) | d;
+            if( this.hierarchy.isRoot(anc) && d < depth )
+                depth = d;
+        }
+        Arrays.sort(packed);
+        int[] ids = new int[packed.length];
+        int[] dist = new int[packed.length];
+        for( int i = 0; i < packed.length; i++ ) {
+            ids[i] = (int) (packed[i] >>> 32);
+            dist[i] = (int) packed[i];
+        }
+        a = new AncestorMap(ids, dist, depth == Integer.MAX_VALUE ? -1 : depth);
+        this.memo[id] = a;
+        return a;
+    }
+
+    /**
+     * @return hops from id up to the nearest root (0 for a root), or -1 if no root can be reached
+     */
+    public int depth(int id) {
+        return this.ancestors(id).depth;
+    }
+
+    /**
+     * Shortest is-a path between a and b through a common ancestor. The lowest common ancestor reported
+     * is the one on that path; ties go to the deeper ancestor, then the lower id.
+     */
+    public Result distance(int a, int b) {
+        AncestorMap ma = this.ancestors(a);
+        AncestorMap mb = this.ancestors(b);
+        int best = Integer.MAX_VALUE;
+        int lca = -1;
+        int i = 0;
+        int j = 0;
+        while( i < ma.ids.length && j < mb.ids.length ) {
+            int x = ma.ids[i];
+            int y = mb.ids[j];
+            if( x < y ) {
+                i++;
+            } else if( x > y ) {
+                j++;
+            } else {
+                int d = ma.dist[i] + mb.dist[j];
+                if( d < best || (d == best && this.deeper(x, lca)) ) {
+                    best = d;
+                    lca = x;
+                }
+                i++;
+                j++;
+            }
+        }
+        return lca < 0 ? UNRELATED : new Result(best, lca);
+    }
+
+    private boolean deeper(int x, int than) {
+        int dx = this.depth(x);
+        int dt = this.depth(than);
+        return dx > dt || (dx == dt && x < than);
+    }
+
+    String format(String a, String b) {
+        int ia = this.hierarchy.resolve(a);
+        int ib = this.hierarchy.resolve(b);
+        if( ia < 0 || ib < 0 )
+            return a + "\t" + b + "\t\t\t\t\t";
+        Result r = this.distance(ia, ib);
+        String lca = r.lca < 0 ? "" : this.hierarchy.iri(r.lca);
+        String lcaDepth = r.lca < 0 ? "" : Integer.toString(this.depth(r.lca));
+        return a + "\t" + b + "\t" + r.distance + "\t" + lca + "\t" + lcaDepth + "\t" +
+                this.depth(ia) + "\t" + this.depth(ib);
+    }
+
+    /**
+     * Reads (a, b) pairs from the first two columns of pairsFile and writes one line per pair to outFile:
+     * a, b, distance, lca, lca_depth, depth_a, depth_b. Unknown classes get empty columns and unrelated
+     * pairs a distance of -1.
+     *
+     * @return number of pairs processed
+     */
+    public long computePairs(File pairsFile, File outFile, int threads) throws IOException {
+        return PairBatch.run(pairsFile, outFile, "a\tb\tdistance\tlca\tlca_depth\tdepth_a\tdepth_b", threads,
+                this::format);
+    }
+}
@@ -0,0 +1,62 @@
+package org.czi.meta.kg.ontology.jena;
+
+import java.util.Arrays;
+
+/**
+ * String to string map with keys and values interned in a StringPool: the value handle of each key is kept
+ * in an int array indexed by the key handle. Holds the IRI lookups of the SKOS builders, where keys and
+ * values share a handful of namespaces.
+ *
+ * Not thread safe.
+ */
+public class InternedStringMap {
+
+    StringPool pool;
+    int[] values = new int[0];     // key handle -> value handle, -1 when the key is absent
+    int size = 0;
+
+    public InternedStringMap() {
+        this(new StringPool());
+    }
+
+    public InternedStringMap(StringPool pool) {
+        this.pool = pool;
+    }
+
+    public StringPool getPool() {
+        return this.pool;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean containsKey(String key) {
+        return this.valueHandle(this.pool.find(key)) >= 0;
+    }
+
+    /**
+     * @return the value of key, or null
+     */
+    public String get(String key) {
+        int v = this.valueHandle(this.pool.find(key));
+        return v < 0 ? null : this.pool.get(v);
+    }
+
+    public void put(String key, String value) {
+        int k = this.pool.intern(key);
+        int v = this.pool.intern(value);
+        if( k >= this.values.length ) {
+            int n = this.values.length;
+            this.values = Arrays.copyOf(this.values, Math.max(k + 1, 2 * n));
+            Arrays.fill(this.values, n, this.values.length, -1);
+        }
+        if( this.values[k] < 0 )
+            this.size++;
+        this.values[k] = v;
+    }
+
+    private int valueHandle(int k) {
+        return k < 0 || k >= this.values.length ? -1 : this.values[k];
+    }
+}
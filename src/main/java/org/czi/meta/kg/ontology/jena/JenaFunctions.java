@@ -2,15 +2,10 @@ package org.czi.meta.kg.ontology.jena;
 
 import com.univocity.parsers.tsv.TsvParser;
 import com.univocity.parsers.tsv.TsvParserSettings;
-import org.apache.jena.ontology.OntDocumentManager;
-import org.apache.jena.ontology.OntModel;
-import org.apache.jena.ontology.OntModelSpec;
-import org.apache.jena.ontology.Ontology;
 import org.apache.jena.query.*;
 import org.apache.jena.rdf.model.*;
 import org.apache.jena.reasoner.Reasoner;
 import org.apache.jena.reasoner.ReasonerRegistry;
-import org.apache.jena.util.FileManager;
 import org.apache.jena.vocabulary.RDF;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -107,78 +102,54 @@ public class JenaFunctions {
             skosAltLabel, skosExactMatch;
     Property iaoDefinition;
     Resource skosConceptScheme, skosConcept;
-    OntModel m;
-    OntModel bm;
-    OntDocumentManager dm;
+    SkosGraphBuilder skos;
+    Model bm;
     int max_c_id = 0;
 
     public JenaFunctions() throws IOException {
 
-        // create the base model
-        this.bm = ModelFactory.createOntologyModel( OntModelSpec.OWL_DL_MEM_TRANS_INF );
+        // create the output model
+        this.skos = new SkosGraphBuilder();
+        this.bm = this.skos.getModel();
+
+        // rdfs:subClassOf+ in the queries goes through meta:descendantOf
+        ReachabilityIndex.register();
 
         for( String l : meshCategoriesString.split("\n") ) {
             String[] ll = l.split("\t");
             this.meshCategories.put(ll[0],ll[1]);
         }
 
-        // create the reasoning model using the base
-        this.m = ModelFactory.createOntologyModel( OntModelSpec.OWL_DL_MEM_TRANS_INF, this.bm );
-        this.dm = this.bm.getDocumentManager();
-
-        ClassLoader classLoader = JenaFunctions.class.getClassLoader();
-
-        Ontology ont = bm.createOntology( META_URI );
-        ont.addImport( bm.createResource( SKOS_URI ) );
-        ont.setLabel(ONTOLOGY_NAME, "en");
-        ont.setComment(ONTOLOGY_DESCRIPTION, "en");
-        ont.setVersionInfo(ONTOLOGY_VERSION);
+        this.skos.addOntologyHeader(META_URI, SKOS_URI, ONTOLOGY_NAME, ONTOLOGY_DESCRIPTION,
+                ONTOLOGY_VERSION, "en");
 
-        //File skos_ttl = new File(classLoader.getResource("skos.ttl").getFile());
-        //dm.addAltEntry( SKOS_URI, skos_ttl.getPath() );
-        //m.read( skos_ttl.getPath() );
         bm.setNsPrefix("skos", SKOS_URI);
         bm.setNsPrefix("", META_URI);
         bm.setNsPrefix("metaskos", META_URI);
 
-        //File prov_ttl = new File(classLoader.getResource("prov.ttl").getFile());
-        //dm.addAltEntry( PROV_URI, prov_ttl.getPath() );
-        //m.read( prov_ttl.getPath(), "TURTLE" );
-
-        this.skosExactMatch = m.getProperty(SKOS_URI+"exactMatch");
-        this.skosBroader  = m.getProperty(SKOS_URI + "broader");
-        this.skosNarrower  = m.getProperty(SKOS_URI + "narrower");
-        this.skosDefiniton = m.getProperty(SKOS_URI + "definition");
-        this.skosInScheme = m.getProperty(SKOS_URI + "inScheme");
-        this.skosHasTopConcept  = m.getProperty(SKOS_URI + "hasTopConcept");
-        this.skosAltLabel  = m.getProperty(SKOS_URI + "altLabel");
-
-        this.iaoDefinition = m.getProperty(OBO_URI + "IAO_0000115");
+        this.skosExactMatch = this.bm.createProperty(SKOS_URI+"exactMatch");
+        this.skosBroader  = this.bm.createProperty(SKOS_URI + "broader");
+        this.skosNarrower  = this.bm.createProperty(SKOS_URI + "narrower");
+        this.skosDefiniton = this.bm.createProperty(SKOS_URI + "definition");
+        this.skosInScheme = this.bm.createProperty(SKOS_URI + "inScheme");
+        this.skosHasTopConcept  = this.bm.createProperty(SKOS_URI + "hasTopConcept");
+        this.skosAltLabel  = this.bm.createProperty(SKOS_URI + "altLabel");
 
-        this.skosConcept = m.getResource(SKOS_URI + "Concept");
-        this.skosConceptScheme = m.getResource(SKOS_URI + "ConceptScheme");
+        this.iaoDefinition = this.bm.createProperty(OBO_URI + "IAO_0000115");
 
-    }
+        this.skosConcept = this.bm.createResource(SKOS_URI + "Concept");
+        this.skosConceptScheme = this.bm.createResource(SKOS_URI + "ConceptScheme");
 
-    private  Set<Resource> executeSimpleSparql(Model model, String query) {
-        Query query1 = QueryFactory.create(query);
-        QueryExecution qexec1 = QueryExecutionFactory.create(query1, model);
-        ResultSet results1 = qexec1.execSelect();
-        Set<Resource> s = new HashSet<Resource>();
-        for (; results1.hasNext(); ) {
-            QuerySolution soln = results1.nextSolution();
-            Resource d = soln.getResource("d");
-            Resource x = soln.getResource("xref");
-            //System.out.println(d+"\t"+x);
-            s.add(d);
-        }
-        return s;
     }
 
     public void countMondoXrefs(File mondoFile) throws Exception {
 
-        Model mondoModel = ModelFactory.createDefaultModel();
-        mondoModel.read(new FileInputStream(mondoFile), null, "TTL");
+        Model mondoModel = OntologyLoader.loadMondo(mondoFile);
+        this.countMondoXrefs(mondoModel);
+
+    }
+
+    public void countMondoXrefs(Model mondoModel) throws Exception {
 
         /*String[] searches = new String[] { "umls", "mesh", "snomedct", "DOID", "Orphanet" };
         String template = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
@@ -186,13 +157,14 @@ public class JenaFunctions {
                 "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
                 "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
                 "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
+                "PREFIX meta: <http://meta.org/fn#>\n" +
                 "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
                 "SELECT DISTINCT ?d ?xref \n" +
                 "WHERE {\n" +
                 "  ?d rdf:type owl:Class .\n" +
                 "  ?d rdfs:label ?dName .\n" +
                 "  ?d skos:exactMatch ?xref .\n" +
-                "  ?d rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
+                "  ?d meta:descendantOf obo:MONDO_0000001 .\n" +
                 "  FILTER( regex(str(?xref), \"(XXXXX)\") )\n" +
                 "} \n";
         for(String s : searches) {
@@ -206,65 +178,37 @@ public class JenaFunctions {
                 "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
                 "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
                 "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
+                "PREFIX meta: <http://meta.org/fn#>\n" +
                 "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
                 "SELECT DISTINCT ?d \n" +
                 "WHERE {\n" +
                 "  ?d rdf:type owl:Class .\n" +
                 "  ?d rdfs:label ?dName .\n" +
-                "  ?d rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
+                "  ?d meta:descendantOf obo:MONDO_0000001 .\n" +
                 "} \n";
         Set<Resource> out = this.executeSimpleSparql(mondoModel, query);
         System.out.println("Count of all disease nodes: " + out.size());*/
 
-        String query = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
-                "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
-                "PREFIX oboInOwl: <http://www.geneontology.org/formats/oboInOwl#>\n" +
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
-                "SELECT DISTINCT ?d \n" +
-                "WHERE {\n" +
-                "  ?d rdf:type owl:Class .\n" +
-                "  ?d rdfs:label ?dName .\n" +
-                "  ?d rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "  ?d rdfs:subClassOf+ ?t .\n" +
-                "  ?t rdf:type owl:Restriction .\n" +
-                "  ?t owl:onProperty obo:RO_0002573 .\n" +
-                "  ?t owl:someValuesFrom obo:MONDO_0021136 .\n" +
-                "} \n";
-        Set<Resource> out = this.executeSimpleSparql(mondoModel, query);
-        System.out.println("Count of all rare disease nodes: " + out.size());
-
-        query = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
-                "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
-                "PREFIX oboInOwl: <http://www.geneontology.org/formats/oboInOwl#>\n" +
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
-                "SELECT DISTINCT ?d \n" +
-                "WHERE {\n" +
-                "  ?d rdf:type owl:Class .\n" +
-                "  ?d rdfs:label ?dName .\n" +
-                "  ?d rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "  ?d rdfs:subClassOf+ ?t .\n" +
-                "  ?t rdf:type owl:Restriction .\n" +
-                "  ?t owl:onProperty obo:RO_0002573 .\n" +
-                "  ?t owl:someValuesFrom obo:MONDO_0021136 .\n" +
-                "  ?d skos:exactMatch ?xref .\n" +
-                "  FILTER( regex(str(?xref), \"(umls)\") )\n" +
-                "} \n";
-        out = this.executeSimpleSparql(mondoModel, query);
-        System.out.println("Count of all UMLS rare disease nodes: " + out.size());
+        XrefProfiler profile = XrefProfiler.profile(mondoModel);
+        System.out.println("Count of all rare disease nodes: " + profile.getRare().cardinality());
+        System.out.println("Count of all UMLS rare disease nodes: " + profile.rareCount("umls"));
 
     }
 
     public static class Options {
 
-        @Option(name = "-mondoFile", usage = "MONDO File", required = true, metaVar = "MONDO-FILE")
+        @Option(name = "-mondoFile", usage = "MONDO File", required = false, metaVar = "MONDO-FILE")
         public File mondoFile;
 
+        @Option(name = "-storeDir", usage = "TDB2 Store Directory (instead of -mondoFile)", required = false, metaVar = "STORE-DIR")
+        public File storeDir;
+
+        @Option(name = "-cacheDir", usage = "Parsed Snapshot Cache Directory", required = false, metaVar = "CACHE-DIR")
+        public File cacheDir;
+
+        @Option(name = "-lang", usage = "Keep only MONDO literals in these languages (e.g. en)", required = false, metaVar = "LANGS")
+        public String lang;
+
     }
 
     /**
@@ -282,6 +226,9 @@ public class JenaFunctions {
         try {
 
             parser.parseArgument(args);
+            if( options.mondoFile == null && options.storeDir == null ) {
+                throw new CmdLineException(parser, "One of -mondoFile or -storeDir is required");
+            }
 
         } catch (CmdLineException e) {
 
@@ -290,12 +237,25 @@ public class JenaFunctions {
             parser.printSingleLineUsage(System.err);
             System.err.println("\n\n Options: \n");
             parser.printUsage(System.err);
-            System.exit(-1);
+            OntologyDaemon.exit(-1);
 
         }
 
+        OntologyLoader.setCacheDir(options.cacheDir);
+        OntologyLoader.setLanguages(options.lang);
+
         JenaFunctions m2s = new JenaFunctions();
-        m2s.countMondoXrefs(options.mondoFile);
+        if( options.storeDir != null ) {
+            OntologyStore store = OntologyStore.open(options.storeDir);
+            store.begin();
+            try {
+                m2s.countMondoXrefs(store.getMondoModel());
+            } finally {
+                store.end();
+            }
+        } else {
+            m2s.countMondoXrefs(options.mondoFile);
+        }
 
 
     }
@@ -0,0 +1,375 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.sparql.core.Substitute;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.pfunction.PropFuncArg;
+import org.apache.jena.sparql.pfunction.PropFuncArgType;
+import org.apache.jena.sparql.pfunction.PropertyFunctionBase;
+import org.apache.jena.sparql.pfunction.PropertyFunctionRegistry;
+import org.apache.jena.sparql.util.IterLib;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.vocabulary.RDFS;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Inverted token index over the names and definitions in a graph: rdfs:label, oboInOwl:hasExactSynonym,
+ * skos:altLabel and IAO_0000115.
+ *
+ * Literals are split into lower cased runs of letters and digits. Each distinct token keeps the sorted list
+ * of the literals (entries) it occurs in, and the tokens themselves are sorted, so a prefix is a range of
+ * tokens. A query is a conjunction of
+ *     term       entries containing the token
+ *     term*      entries containing a token starting with term
+ *     "a b c"    entries containing the tokens in this order
+ * and hits are scored by the share of the entry's tokens the query matched, so an exact name scores 1.
+ *
+ * SPARQL queries use it through the property function meta:textQuery, much like jena-text's text:query:
+ *     ?s meta:textQuery "query"
+ *     (?s ?score ?literal) meta:textQuery (rdfs:label "query" 10)
+ * where the property and the limit are optional, and ?score and ?literal may be left out. The query may be
+ * a variable bound earlier, which turns a label pattern join into one probe per row. A bound value is a
+ * name, not query syntax: it is searched literally, as the phrase of its tokens, so quotes or a trailing
+ * '*' in a label have no special meaning.
+ */
+public class LabelTextIndex {
+
+    public static String TEXT_QUERY = ReachabilityIndex.FN_URI + "textQuery";
+
+    public static Node[] PROPERTIES = {
+            RDFS.label.asNode(),
+            NodeFactory.createURI(DiseaseTableExtractor.OBOINOWL_URI + "hasExactSynonym"),
+            NodeFactory.createURI(DiseaseTableExtractor.SKOS_URI + "altLabel"),
+            NodeFactory.createURI(DiseaseTableExtractor.OBO_URI + "IAO_0000115")};
+
+    static GraphAttachments<LabelTextIndex> attached = new GraphAttachments<LabelTextIndex>();
+
+    static {
+        PropertyFunctionRegistry.get().put(TEXT_QUERY, TextQuery.class);
+    }
+
+    public static final class Hit {
+        final Node subject;
+        final Node property;
+        final Node literal;
+        final float score;
+
+        Hit(Node subject, Node property, Node literal, float score) {
+            this.subject = subject;
+            this.property = property;
+            this.literal = literal;
+            this.score = score;
+        }
+
+        public Node getSubject() {
+            return this.subject;
+        }
+
+        public Node getProperty() {
+            return this.property;
+        }
+
+        public Node getLiteral() {
+            return this.literal;
+        }
+
+        public float getScore() {
+            return this.score;
+        }
+    }
+
+    Node[] subjects;       // entry -> subject, property and literal
+    Node[] properties;
+    Node[] literals;
+    int[] lengths;         // entry -> number of tokens
+    String[] terms;        // sorted
+    int[] offsets;         // term -> range of entries in postings
+    int[] postings;
+
+    LabelTextIndex(Node[] subjects, Node[] properties, Node[] literals, int[] lengths, String[] terms, int[] offsets,
+                   int[] postings) {
+        this.subjects = subjects;
+        this.properties = properties;
+        this.literals = literals;
+        this.lengths = lengths;
+        this.terms = terms;
+        this.offsets = offsets;
+        this.postings = postings;
+    }
+
+    /**
+     * Makes sure meta:textQuery is registered with ARQ. Call before running queries that use it.
+     */
+    public static void register() {
+    }
+
+    public static LabelTextIndex of(Model model) {
+        return of(model.getGraph());
+    }
+
+    /**
+     * @return the index attached to graph, building it on first use
+     */
+    public static LabelTextIndex of(Graph graph) {
+        try {
+            return attached.get(graph, LabelTextIndex::build);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static LabelTextIndex build(Graph graph) {
+        long startTime = System.currentTimeMillis();
+        List<Node> subjects = new ArrayList<Node>();
+        List<Node> properties = new ArrayList<Node>();
+        List<Node> literals = new ArrayList<Node>();
+        List<Integer> lengths = new ArrayList<Integer>();
+        Map<String, List<Integer>> tokens = new HashMap<String, List<Integer>>();
+
+        for( Node p : PROPERTIES ) {
+            ExtendedIterator<Triple> it = graph.find(Node.ANY, p, Node.ANY);
+            while( it.hasNext() ) {
+                Triple t = it.next();
+                if( !t.getObject().isLiteral() )
+                    continue;
+                int entry = subjects.size();
+                subjects.add(t.getSubject());
+                properties.add(p);
+                literals.add(t.getObject());
+                List<String> words = tokenize(t.getObject().getLiteralLexicalForm());
+                lengths.add(words.size());
+                for( String w : new LinkedHashSet<String>(words) )
+                    tokens.computeIfAbsent(w, k -> new ArrayList<Integer>()).add(entry);
+            }
+        }
+
+        // entries were numbered in order, so every posting list is already sorted
+        String[] terms = tokens.keySet().toArray(new String[0]);
+        Arrays.sort(terms);
+        int[] offsets = new int[terms.length + 1];
+        for( int i = 0; i < terms.length; i++ )
+            offsets[i + 1] = offsets[i] + tokens.get(terms[i]).size();
+        int[] postings = new int[offsets[terms.length]];
+        for( int i = 0; i < terms.length; i++ ) {
+            int k = offsets[i];
+            for( int e : tokens.get(terms[i]) )
+                postings[k++] = e;
+        }
+        int[] lens = new int[lengths.size()];
+        for( int i = 0; i < lens.length; i++ )
+            lens[i] = lengths.get(i);
+
+        System.err.println("Indexed " + lens.length + " names over " + terms.length + " tokens in " +
+                (System.currentTimeMillis() - startTime) + " ms");
+        return new LabelTextIndex(subjects.toArray(new Node[0]), properties.toArray(new Node[0]),
+                literals.toArray(new Node[0]), lens, terms, offsets, postings);
+    }
+
+    public int size() {
+        return this.subjects.length;
+    }
+
+    public static List<String> tokenize(String s) {
+        List<String> tokens = new ArrayList<String>();
+        int start = -1;
+        for( int i = 0; i <= s.length(); i++ ) {
+            boolean word = i < s.length() && Character.isLetterOrDigit(s.charAt(i));
+            if( word && start < 0 ) {
+                start = i;
+            } else if( !word && start >= 0 ) {
+                tokens.add(s.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @param property only match literals of this property, or null for all
+     * @param limit    maximum number of hits, or 0 for all
+     * @return the hits for query, best first
+     */
+    public List<Hit> search(String query, Node property, int limit) {
+        return this.search(query, property, limit, false);
+    }
+
+    /**
+     * @param literal  search for the tokens of query as one phrase, without parsing quotes or prefixes
+     */
+    public List<Hit> search(String query, Node property, int limit, boolean literal) {
+        List<int[]> clauses = new ArrayList<int[]>();
+        List<String> phrases = new ArrayList<String>();
+        int matched = 0;
+
+        if( literal ) {
+            // the whole text is a single phrase
+            List<String> words = tokenize(query);
+            for( String w : words )
+                clauses.add(this.postings(w));
+            if( words.size() > 1 )
+                phrases.add(String.join(" ", words));
+            matched = words.size();
+        } else {
+            // "phrases" first, then the remaining terms
+            StringBuilder rest = new StringBuilder();
+            int i = 0;
+            while( i < query.length() ) {
+                int q = query.indexOf('"', i);
+                int end = q < 0 ? -1 : query.indexOf('"', q + 1);
+                if( end < 0 ) {
+                    rest.append(query.substring(i));
+                    break;
+                }
+                rest.append(query, i, q).append(' ');
+                List<String> words = tokenize(query.substring(q + 1, end));
+                if( !words.isEmpty() ) {
+                    for( String w : words )
+                        clauses.add(this.postings(w));
+                    phrases.add(String.join(" ", words));
+                    matched += words.size();
+                }
+                i = end + 1;
+            }
+            for( String term : rest.toString().split("\\s+") ) {
+                boolean prefix = term.endsWith("*");
+                for( String w : tokenize(term) ) {
+                    clauses.add(prefix ? this.prefixPostings(w) : this.postings(w));
+                    matched++;
+                }
+            }
+        }
+        if( clauses.isEmpty() )
+            return Collections.emptyList();
+
+        // intersect, smallest list first
+        clauses.sort(Comparator.comparingInt(c -> c.length));
+        int[] entries = clauses.get(0);
+        for( int c = 1; c < clauses.size() && entries.length > 0; c++ )
+            entries = intersect(entries, clauses.get(c));
+
+        List<Hit> hits = new ArrayList<Hit>();
+        for( int e : entries ) {
+            if( property != null && !this.properties[e].equals(property) )
+                continue;
+            if( !phrases.isEmpty() ) {
+                String text = " " + String.join(" ", tokenize(this.literals[e].getLiteralLexicalForm())) + " ";
+                boolean all = true;
+                for( String p : phrases )
+                    all &= text.contains(" " + p + " ");
+                if( !all )
+                    continue;
+            }
+            float score = Math.min(1f, matched / (float) Math.max(1, this.lengths[e]));
+            hits.add(new Hit(this.subjects[e], this.properties[e], this.literals[e], score));
+        }
+        hits.sort((a, b) -> Float.compare(b.score, a.score));
+        if( limit > 0 && hits.size() > limit )
+            return new ArrayList<Hit>(hits.subList(0, limit));
+        return hits;
+    }
+
+    int[] postings(String term) {
+        int t = Arrays.binarySearch(this.terms, term);
+        if( t < 0 )
+            return new int[0];
+        return Arrays.copyOfRange(this.postings, this.offsets[t], this.offsets[t + 1]);
+    }
+
+    int[] prefixPostings(String prefix) {
+        int lo = Arrays.binarySearch(this.terms, prefix);
+        if( lo < 0 )
+            lo = -lo - 1;
+        int hi = lo;
+        while( hi < this.terms.length && this.terms[hi].startsWith(prefix) )
+            hi++;
+        BitSet s = new BitSet(this.subjects.length);
+        for( int k = this.offsets[lo]; k < this.offsets[hi]; k++ )
+            s.set(this.postings[k]);
+        return s.stream().toArray();
+    }
+
+    static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while( i < a.length && j < b.length ) {
+            if( a[i] < b[j] )
+                i++;
+            else if( a[i] > b[j] )
+                j++;
+            else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    public static class TextQuery extends PropertyFunctionBase {
+
+        public TextQuery() {
+            super(PropFuncArgType.PF_ARG_EITHER, PropFuncArgType.PF_ARG_EITHER);
+        }
+
+        @Override
+        public QueryIterator exec(Binding binding, PropFuncArg subject, Node predicate, PropFuncArg object,
+                                  ExecutionContext execCxt) {
+            // the query is looked up literally when it comes from a variable
+            List<Node> given = object.isNode() ? Collections.singletonList(object.getArg()) : object.getArgList();
+            subject = Substitute.substitute(subject, binding);
+            object = Substitute.substitute(object, binding);
+
+            // object: "query" or ([property] "query" [limit])
+            List<Node> args = object.isNode() ? Collections.singletonList(object.getArg()) : object.getArgList();
+            int a = 0;
+            Node property = null;
+            if( a < args.size() && args.get(a).isURI() )
+                property = args.get(a++);
+            if( a >= args.size() || !args.get(a).isLiteral() )
+                return IterLib.noResults(execCxt);
+            boolean literal = given.get(a).isVariable();
+            String query = args.get(a++).getLiteralLexicalForm();
+            int limit = 0;
+            if( a < args.size() && args.get(a).isLiteral() && args.get(a).getLiteralValue() instanceof Number )
+                limit = ((Number) args.get(a).getLiteralValue()).intValue();
+
+            // subject: ?s or (?s [?score [?literal]])
+            List<Node> targets = subject.isNode() ? Collections.singletonList(subject.getArg()) : subject.getArgList();
+            if( targets.isEmpty() )
+                return IterLib.noResults(execCxt);
+
+            List<Binding> out = new ArrayList<Binding>();
+            for( Hit hit : LabelTextIndex.of(execCxt.getActiveGraph()).search(query, property, limit, literal) ) {
+                Node[] values = {hit.subject, NodeValue.makeFloat(hit.score).asNode(), hit.literal};
+                BindingMap b = BindingFactory.create(binding);
+                boolean match = true;
+                for( int t = 0; t < targets.size() && t < values.length && match; t++ ) {
+                    Node target = targets.get(t);
+                    if( target.isVariable() )
+                        b.add(Var.alloc(target), values[t]);
+                    else
+                        match = target.sameValueAs(values[t]);
+                }
+                if( match )
+                    out.add(b);
+            }
+            return new QueryIterPlainWrapper(out.iterator(), execCxt);
+        }
+    }
+}
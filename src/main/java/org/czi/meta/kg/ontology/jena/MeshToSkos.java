@@ -2,18 +2,15 @@ package org.czi.meta.kg.ontology.jena;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.IntPredicate;
 import java.util.logging.FileHandler;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
 import com.univocity.parsers.tsv.TsvParser;
 import com.univocity.parsers.tsv.TsvParserSettings;
-import org.apache.jena.ontology.*;
 import org.apache.jena.query.*;
 import org.apache.jena.rdf.model.*;
-import org.apache.jena.reasoner.Reasoner;
-import org.apache.jena.reasoner.ReasonerRegistry;
-import org.apache.jena.util.FileManager;
 import org.apache.jena.vocabulary.RDF;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -97,7 +94,7 @@ public class MeshToSkos {
     Map<String, UmlsMeshMetaRecord> meshRecords;
     Map<String, UmlsMeshMetaRecord> umlsRecords;
     Map<String, UmlsMeshMetaRecord> metaRecords;
-    Map<String, String> master_meta_lookup = new HashMap<String, String>();
+    InternedStringMap master_meta_lookup = new InternedStringMap();
     Map<String, Resource> treeLookup = new HashMap<String, Resource>();
 
     Property meshvBroaderDescriptor, meshvNarrowerDescriptor, meshvBroader, meshvNarrower,
@@ -107,56 +104,43 @@ public class MeshToSkos {
             skosAltLabel, skosExactMatch;
     Property iaoDefinition;
     Resource skosConceptScheme, skosConcept;
-    OntModel m;
-    OntModel bm;
-    OntDocumentManager dm;
+    SkosGraphBuilder skos;
+    Model bm;
     int max_c_id = 0;
 
     public MeshToSkos() throws IOException {
 
-        // create the base model
-        this.bm = ModelFactory.createOntologyModel( OntModelSpec.OWL_DL_MEM_TRANS_INF );
+        // create the output model
+        this.skos = new SkosGraphBuilder();
+        this.bm = this.skos.getModel();
+
+        // rdfs:subClassOf+ in the queries goes through meta:descendantOf
+        ReachabilityIndex.register();
 
         for( String l : meshCategoriesString.split("\n") ) {
             String[] ll = l.split("\t");
             this.meshCategories.put(ll[0],ll[1]);
         }
 
-        // create the reasoning model using the base
-        this.m = ModelFactory.createOntologyModel( OntModelSpec.OWL_DL_MEM_TRANS_INF, this.bm );
-        this.dm = this.bm.getDocumentManager();
-
-        ClassLoader classLoader = MeshToSkos.class.getClassLoader();
+        this.skos.addOntologyHeader(META_URI, SKOS_URI, ONTOLOGY_NAME, ONTOLOGY_DESCRIPTION,
+                ONTOLOGY_VERSION, "en");
 
-        Ontology ont = bm.createOntology( META_URI );
-        ont.addImport( bm.createResource( SKOS_URI ) );
-        ont.setLabel(ONTOLOGY_NAME, "en");
-        ont.setComment(ONTOLOGY_DESCRIPTION, "en");
-        ont.setVersionInfo(ONTOLOGY_VERSION);
-
-        //File skos_ttl = new File(classLoader.getResource("skos.ttl").getFile());
-        //dm.addAltEntry( SKOS_URI, skos_ttl.getPath() );
-        //m.read( skos_ttl.getPath() );
         bm.setNsPrefix("skos", SKOS_URI);
         bm.setNsPrefix("", META_URI);
         bm.setNsPrefix("metaskos", META_URI);
 
-        //File prov_ttl = new File(classLoader.getResource("prov.ttl").getFile());
-        //dm.addAltEntry( PROV_URI, prov_ttl.getPath() );
-        //m.read( prov_ttl.getPath(), "TURTLE" );
-
-        this.skosExactMatch = m.getProperty(SKOS_URI+"exactMatch");
-        this.skosBroader  = m.getProperty(SKOS_URI + "broader");
-        this.skosNarrower  = m.getProperty(SKOS_URI + "narrower");
-        this.skosDefiniton = m.getProperty(SKOS_URI + "definition");
-        this.skosInScheme = m.getProperty(SKOS_URI + "inScheme");
-        this.skosHasTopConcept  = m.getProperty(SKOS_URI + "hasTopConcept");
-        this.skosAltLabel  = m.getProperty(SKOS_URI + "altLabel");
+        this.skosExactMatch = this.bm.createProperty(SKOS_URI+"exactMatch");
+        this.skosBroader  = this.bm.createProperty(SKOS_URI + "broader");
+        this.skosNarrower  = this.bm.createProperty(SKOS_URI + "narrower");
+        this.skosDefiniton = this.bm.createProperty(SKOS_URI + "definition");
+        this.skosInScheme = this.bm.createProperty(SKOS_URI + "inScheme");
+        this.skosHasTopConcept  = this.bm.createProperty(SKOS_URI + "hasTopConcept");
+        this.skosAltLabel  = this.bm.createProperty(SKOS_URI + "altLabel");
 
-        this.iaoDefinition = m.getProperty(OBO_URI + "IAO_0000115");
+        this.iaoDefinition = this.bm.createProperty(OBO_URI + "IAO_0000115");
 
-        this.skosConcept = m.getResource(SKOS_URI + "Concept");
-        this.skosConceptScheme = m.getResource(SKOS_URI + "ConceptScheme");
+        this.skosConcept = this.bm.createResource(SKOS_URI + "Concept");
+        this.skosConceptScheme = this.bm.createResource(SKOS_URI + "ConceptScheme");
 
     }
 
@@ -183,7 +167,7 @@ public class MeshToSkos {
     private boolean addMetaConceptFromMondo(Resource r){
         String c_id = this.getMetaUriFromMondo(r);
         Resource metaConcept = this.bm.getResource(c_id);
-        if(!metaConcept.hasProperty(label)) {
+        if(!this.skos.isDescribed(metaConcept)) {
             this.addMondoConcept(r);
             return true;
         } else {
@@ -226,7 +210,7 @@ public class MeshToSkos {
 
         this.addNarrowerConcepts(metaConcept, prefConcept, conceptScheme);
 
-        StmtIterator nIt = prefConcept.listProperties(m.getProperty(MESHV_URI + "broaderConcept"));
+        StmtIterator nIt = prefConcept.listProperties(this.bm.createProperty(MESHV_URI + "broaderConcept"));
         Set<String> unanchoredConcepts = new HashSet<String>();
         while(nIt.hasNext()) {
             Statement s = nIt.nextStatement();
@@ -297,7 +281,7 @@ public class MeshToSkos {
     }
 
     void addNarrowerConcepts(Resource metaConcept, Resource meshConcept, Resource conceptScheme) {
-        StmtIterator nIt = meshConcept.listProperties(m.getProperty(MESHV_URI + "narrowerConcept"));
+        StmtIterator nIt = meshConcept.listProperties(this.bm.createProperty(MESHV_URI + "narrowerConcept"));
         while(nIt.hasNext()) {
             Statement s = nIt.nextStatement();
             Resource nConcept = s.getObject().as(Resource.class);
@@ -312,7 +296,7 @@ public class MeshToSkos {
         String meshId = mesh.getURI().substring(mesh.getURI().lastIndexOf('/')+1);
         this.bm.add(metaConcept, this.skosExactMatch, mesh);
         if (this.meshRecords.containsKey(meshId) && this.meshRecords.get(meshId).umls.length() > 0) {
-            Resource umlsMatch = m.getResource(UMLS_URI + this.meshRecords.get(meshId).umls);
+            Resource umlsMatch = this.bm.createResource(UMLS_URI + this.meshRecords.get(meshId).umls);
             this.bm.add(metaConcept, this.skosExactMatch, umlsMatch);
         }
     }
@@ -336,7 +320,7 @@ public class MeshToSkos {
         Resource metaConcept = this.bm.getResource(c_id);
 
         // return if details for this concept already filled in.
-        if( metaConcept.hasProperty(label) ) {
+        if( this.skos.isDescribed(metaConcept) ) {
             try {
                 this.writeDebugComparison(meshConcept, metaConcept);
             } catch (IOException e) {
@@ -387,7 +371,7 @@ public class MeshToSkos {
         Resource metaConcept = this.bm.getResource(c_id);
 
         // return if details for this concept already filled in.
-        if( metaConcept.hasProperty(label) )
+        if( this.skos.isDescribed(metaConcept) )
             return metaConcept;
 
         this.bm.add(metaConcept, this.skosExactMatch, mondoConcept);
@@ -406,7 +390,7 @@ public class MeshToSkos {
         }
 
         Set<Literal> altLabels = new HashSet<Literal>();
-        StmtIterator tIt = mondoConcept.listProperties(m.getProperty(OBOINOWL_URI + "hasExactSynonym"));
+        StmtIterator tIt = mondoConcept.listProperties(this.bm.createProperty(OBOINOWL_URI + "hasExactSynonym"));
         while(tIt.hasNext()) {
             Statement s2 = tIt.nextStatement();
             altLabels.add(s2.getObject().asLiteral());
@@ -421,11 +405,15 @@ public class MeshToSkos {
 
     public void buildSkosFromMesh(File meshFile) throws Exception {
 
-        Model mesh_schema = FileManager.get().loadModel(MESHV_URI);
-        Model data = FileManager.get().loadModel(meshFile.getPath());
-        Reasoner reasoner = ReasonerRegistry.getRDFSReasoner();
-        reasoner = reasoner.bindSchema(mesh_schema);
-        InfModel meshModel = ModelFactory.createInfModel(reasoner, data);
+        Model data = OntologyLoader.loadMesh(meshFile);
+        this.buildSkosFromMesh(data);
+
+    }
+
+    public void buildSkosFromMesh(Model data) throws Exception {
+
+        Model mesh_schema = BundledDocuments.load(MESHV_URI);
+        Model meshModel = new MeshVocabularyMaterializer(mesh_schema).materialize(data);
 
         this.meshvBroaderDescriptor = meshModel.getProperty(MESHV_URI +"broaderDescriptor");
         this.meshvNarrowerDescriptor = meshModel.getProperty(MESHV_URI +"narrowerDescriptor");
@@ -582,80 +570,34 @@ public class MeshToSkos {
         }
     }
 
-    private  Set<Resource> executeSimpleSparql(Model model, String query) {
-        Query query1 = QueryFactory.create(query);
-        QueryExecution qexec1 = QueryExecutionFactory.create(query1, model);
-        ResultSet results1 = qexec1.execSelect();
-        Set<Resource> s = new HashSet<Resource>();
-        for (; results1.hasNext(); ) {
-            QuerySolution soln = results1.nextSolution();
-            Resource d = soln.getResource("d");
-            Resource x = soln.getResource("xref");
-            //System.out.println(d+"\t"+x);
-            s.add(d);
-        }
-        return s;
-    }
-
     public void countMondoXrefs(File mondoFile) throws Exception {
 
-        Model mondoModel = ModelFactory.createDefaultModel();
-        mondoModel.read(new FileInputStream(mondoFile), null, "TTL");
+        Model mondoModel = OntologyLoader.loadMondo(mondoFile);
 
-        String[] searches = new String[] { "umls", "mesh", "snomedct", "DOID", "Orphanet" };
-        String template = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
-                "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
-                "SELECT DISTINCT ?d ?xref \n" +
-                "WHERE {\n" +
-                "  ?d rdf:type owl:Class .\n" +
-                "  ?d rdfs:label ?dName .\n" +
-                "  ?d skos:exactMatch ?xref .\n" +
-                "  ?d rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "  FILTER( regex(str(?xref), \"(XXXXX)\") )\n" +
-                "} \n";
-        for(String s : searches) {
-            String query = template.replaceAll("XXXXX", s);
-            Set<Resource> out = this.executeSimpleSparql(mondoModel, query);
-            System.out.println("Count of all disease nodes with " + s + ": " + out.size());
+        XrefProfiler profile = XrefProfiler.profile(mondoModel);
+        for(String s : profile.getSources()) {
+            System.out.println("Count of all disease nodes with " + s + ": " + profile.count(s));
         }
-
-        String query = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
-                "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
-                "SELECT DISTINCT ?d \n" +
-                "WHERE {\n" +
-                "  ?d rdf:type owl:Class .\n" +
-                "  ?d rdfs:label ?dName .\n" +
-                "  ?d rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
-                "} \n";
-        Set<Resource> out = this.executeSimpleSparql(mondoModel, query);
-        System.out.println("Count of all disease nodes: " + out.size());
+        System.out.println("Count of all disease nodes: " + profile.getDiseases().cardinality());
     }
 
-    public void addMondo(File mondoFile) throws FileNotFoundException {
+    public void addMondo(File mondoFile) throws IOException {
 
-        Model mondoModel = ModelFactory.createDefaultModel();
-        mondoModel.read(new FileInputStream(mondoFile), null, "TTL");
+        Model mondoModel = OntologyLoader.loadMondo(mondoFile);
 
         String allDiseaseQuery = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
                 "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
                 "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
                 "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
                 "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
+                "PREFIX meta: <http://meta.org/fn#>\n" +
                 "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
                 "SELECT DISTINCT ?leaf ?midJ ?midI (count(?counter) as ?position) ?d  \n" +
                 "WHERE {\n" +
                 "  ?d rdf:type owl:Class .\n" +
                 "  ?d rdfs:label ?dName .\n" +
                 "  ?d skos:exactMatch ?xref .\n" +
-                "  ?d rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
+                "  ?d meta:descendantOf obo:MONDO_0000001 .\n" +
                 "  ?counter rdfs:subClassOf* ?d .\n" +
                 "  ?midI rdfs:subClassOf* ?counter .\n" +
                 "  ?midJ rdfs:subClassOf ?midI .\n" +
@@ -717,7 +659,7 @@ public class MeshToSkos {
                 // and  jump to the next anchor->leaf pathway
                 String c_id = this.getMetaUriFromMondo(pe.p1);
                 Resource metaConcept = this.bm.getResource(c_id);
-                if (metaConcept.hasProperty(label)) {
+                if (this.skos.isDescribed(metaConcept)) {
                     Resource first_step = null;
                     for(PathElement to_add : current_path) {
                         Resource m1 = this.addMondoConcept(to_add.p1);
@@ -759,22 +701,27 @@ public class MeshToSkos {
     }
 
 
-    public void addMondo2(File mondoFile) throws FileNotFoundException {
+    public void addMondo2(File mondoFile) throws IOException {
+
+        Model mondoModel = OntologyLoader.loadMondo(mondoFile);
+        this.addMondo2(mondoModel);
+
+    }
 
-        Model mondoModel = ModelFactory.createDefaultModel();
-        mondoModel.read(new FileInputStream(mondoFile), null, "TTL");
+    public void addMondo2(Model mondoModel) {
 
         String allDiseaseQuery = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
                 "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
                 "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
                 "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
                 "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
+                "PREFIX meta: <http://meta.org/fn#>\n" +
                 "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
                 "SELECT DISTINCT ?d ?dName\n" +
                 "WHERE {\n" +
                 "  ?d rdf:type owl:Class .\n" +
                 "  ?d rdfs:label ?dName .\n" +
-                "  ?d rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
+                "  ?d meta:descendantOf obo:MONDO_0000001 .\n" +
                 "  FILTER NOT EXISTS { [] rdfs:subClassOf ?d }\n" +
                 "} \n";
 
@@ -783,6 +730,10 @@ public class MeshToSkos {
         ResultSet results = qexec.execSelect();
         Set<Resource> added = new HashSet<Resource>();
 
+        HierarchyIndex hierarchy = HierarchyIndex.subClassOf(mondoModel);
+        HierarchyIndex.Traversal walker = hierarchy.newTraversal();
+        IntPredicate propagate = id -> this.hasNoMetaMeshXref(mondoModel, hierarchy, id);
+
         //
         // Given a leaf, trace it's subClassOf hierarchy back up the hierarchy until it hits a MeSH-encoded node in
         // the hierarchy and  link it up  and then move to the next leaf. If a node has already been added, move to
@@ -795,7 +746,14 @@ public class MeshToSkos {
             if( addMetaConceptFromMondo(current_mondo_leaf) )
                 added.add(current_mondo_leaf);
 
-            Set<Resource> all_parents = this.getAllParents(current_mondo_leaf,new HashSet<Resource>());
+            int leaf = hierarchy.id(current_mondo_leaf.getURI());
+            if( leaf < 0 )
+                continue;
+
+            Set<Resource> all_parents = new HashSet<Resource>();
+            walker.ancestors(leaf, propagate);
+            for( int i = 0; i < walker.count(); i++ )
+                all_parents.add(mondoModel.getResource(hierarchy.iri(walker.result(i))));
             for(Resource r : all_parents) {
                 if( added.contains(r) )
                     continue;
@@ -803,18 +761,15 @@ public class MeshToSkos {
                     added.add(current_mondo_leaf);
             }
 
-            Set<Statement> all_subClassStatements = this.getAllParentStatements(current_mondo_leaf,new HashSet<Statement>());
-            for(Statement s : all_subClassStatements) {
-                Resource child_mondo = s.getSubject().asResource();
-                Resource parent_mondo = s.getObject().asResource();
-                String child_id = this.getMetaUriFromMondo(child_mondo);
-                Resource child_meta = this.bm.getResource(child_id);
-                String parent_id = this.getMetaUriFromMondo(parent_mondo);
-                Resource parent_meta = this.bm.getResource(parent_id);
-                if(!child_meta.hasProperty(this.skosBroader, parent_meta)) {
+            walker.ancestors(leaf, propagate);
+            for( int i = 0; i < walker.expandedCount(); i++ ) {
+                int child = walker.expanded(i);
+                Resource child_mondo = mondoModel.getResource(hierarchy.iri(child));
+                Resource child_meta = this.bm.getResource(this.getMetaUriFromMondo(child_mondo));
+                for( int k = 0; k < hierarchy.parentCount(child); k++ ) {
+                    Resource parent_mondo = mondoModel.getResource(hierarchy.iri(hierarchy.parent(child, k)));
+                    Resource parent_meta = this.bm.getResource(this.getMetaUriFromMondo(parent_mondo));
                     child_meta.addProperty(this.skosBroader, parent_meta);
-                }
-                if(!parent_meta.hasProperty(this.skosNarrower, child_meta)) {
                     parent_meta.addProperty(this.skosNarrower, child_meta);
                 }
             }
@@ -822,45 +777,13 @@ public class MeshToSkos {
         }
     }
 
-    private Set<Resource> getAllParents(Resource r, Set<Resource> parents) {
-        StmtIterator scIt = r.listProperties(subClassOf);
-        while (scIt.hasNext()) {
-            Statement s = scIt.nextStatement();
-            Resource parent = s.getObject().as(Resource.class);
-            if (parent.getURI() != null) {
-                parents.add(parent);
-
-                // Check if the parent (in MONDO) has a MeSH code.
-                // If it does, add this parent but don't propagate above it.
-                Resource meshXref = this.bm.getResource(MESH_URI + this.getMeshCode(parent) );
-                if( !this.master_meta_lookup.containsKey(meshXref.getURI()) ) {
-                    parents = this.getAllParents(parent, parents);
-                } else {
-                    int pause = 0;
-                }
-            }
-        }
-        return parents;
-    }
-
-    private Set<Statement> getAllParentStatements(Resource r, Set<Statement> statements) {
-        StmtIterator scIt = r.listProperties(subClassOf);
-        while (scIt.hasNext()) {
-            Statement s2 = scIt.nextStatement();
-            Resource parent = s2.getObject().as(Resource.class);
-            if (parent.getURI() != null) {
-                statements.add(s2);
-
-                // Check if the parent (in MONDO) has a MeSH code.
-                // If it does, add this parent but don't propagate above it.
-                Resource meshXref = this.bm.getResource(MESH_URI + this.getMeshCode(parent) );
-                if( !this.master_meta_lookup.containsKey(meshXref.getURI()) ) {
-                    statements = this.getAllParentStatements(parent, statements);
-                }
-
-            }
-        }
-        return statements;
+    //
+    // Walking up from a leaf stops at (but still includes) the first MONDO parent that has a MeSH code
+    // already present in META.
+    //
+    private boolean hasNoMetaMeshXref(Model mondoModel, HierarchyIndex hierarchy, int id) {
+        Resource parent = mondoModel.getResource(hierarchy.iri(id));
+        return !this.master_meta_lookup.containsKey(MESH_URI + this.getMeshCode(parent));
     }
 
     private String getMeshCode(Resource r) {
@@ -886,7 +809,7 @@ public class MeshToSkos {
 
     public static class Options {
 
-        @Option(name = "-meshFile", usage = "Input Mesh File", required = true, metaVar = "MESH-FILE")
+        @Option(name = "-meshFile", usage = "Input Mesh File", required = false, metaVar = "MESH-FILE")
         public File meshFile;
 
         @Option(name = "-conceptsDir", usage = "Concepts TSV Directory", required = true, metaVar = "CONCEPTS-DIR")
@@ -895,9 +818,18 @@ public class MeshToSkos {
         @Option(name = "-skosFile", usage = "Output Meta-SKOS File", required = true, metaVar = "SKOS-FILE")
         public File skosFile;
 
-        @Option(name = "-mondoFile", usage = "MONDO File", required = true, metaVar = "MONDO-FILE")
+        @Option(name = "-mondoFile", usage = "MONDO File", required = false, metaVar = "MONDO-FILE")
         public File mondoFile;
 
+        @Option(name = "-storeDir", usage = "TDB2 Store Directory (instead of -meshFile and -mondoFile)", required = false, metaVar = "STORE-DIR")
+        public File storeDir;
+
+        @Option(name = "-cacheDir", usage = "Parsed Snapshot Cache Directory", required = false, metaVar = "CACHE-DIR")
+        public File cacheDir;
+
+        @Option(name = "-lang", usage = "Keep only MONDO literals in these languages (e.g. en)", required = false, metaVar = "LANGS")
+        public String lang;
+
     }
 
     /**
@@ -915,6 +847,9 @@ public class MeshToSkos {
         try {
 
             parser.parseArgument(args);
+            if( options.storeDir == null && (options.meshFile == null || options.mondoFile == null) ) {
+                throw new CmdLineException(parser, "Either -storeDir or both -meshFile and -mondoFile are required");
+            }
 
         } catch (CmdLineException e) {
 
@@ -923,12 +858,17 @@ public class MeshToSkos {
             parser.printSingleLineUsage(System.err);
             System.err.println("\n\n Options: \n");
             parser.printUsage(System.err);
-            System.exit(-1);
+            OntologyDaemon.exit(-1);
 
         }
 
+        OntologyLoader.setCacheDir(options.cacheDir);
+        OntologyLoader.setLanguages(options.lang);
+
         MeshToSkos m2s = new MeshToSkos();
-        File f = new File(options.meshFile.getParent() + "/log1.txt");
+        File logDir = options.meshFile != null ? options.meshFile.getParentFile() :
+                options.skosFile.getAbsoluteFile().getParentFile();
+        File f = new File(logDir, "log1.txt");
         if( f.exists())
             f.delete();
         m2s.writer = new BufferedWriter(new FileWriter(f));
@@ -968,12 +908,30 @@ public class MeshToSkos {
                 Resource x = soln1.getResource("xref");
                 m2s.master_meta_lookup.put(x.getURI(), d.getURI());
             }
-        } else {
-            m2s.buildSkosFromMesh(options.meshFile);
         }
 
-        //m2s.countMondoXrefs(options.mondoFile);
-        m2s.addMondo2(options.mondoFile);
+        OntologyStore store = null;
+        if( options.storeDir != null ) {
+            store = OntologyStore.open(options.storeDir);
+            store.begin();
+        }
+        try {
+            if( !options.skosFile.exists() ) {
+                if( store != null )
+                    m2s.buildSkosFromMesh(store.getMeshModel());
+                else
+                    m2s.buildSkosFromMesh(options.meshFile);
+            }
+
+            //m2s.countMondoXrefs(options.mondoFile);
+            if( store != null )
+                m2s.addMondo2(store.getMondoModel());
+            else
+                m2s.addMondo2(options.mondoFile);
+        } finally {
+            if( store != null )
+                store.end();
+        }
         options.skosFile.delete();
         m2s.writeToOut(new File(options.skosFile.getPath()) );
 
@@ -0,0 +1,103 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.compose.Union;
+import org.apache.jena.rdf.model.*;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+
+import java.util.*;
+
+/**
+ * Computes the few RDFS entailments the MeSH converters rely on, instead of running the whole MeSH data
+ * model through the RDFS reasoner.
+ *
+ * For every target property Q the data is scanned once per sub-property P of Q (transitively, from the
+ * meshv schema) and (s Q o) is added for each (s P o). Target classes are handled the same way through
+ * rdfs:subClassOf and rdf:type. Domain and range typing is not computed; nothing in the converters reads it.
+ */
+public class MeshVocabularyMaterializer {
+
+    public static String MESHV_URI = "http://id.nlm.nih.gov/mesh/vocab#";
+
+    public static List<String> TARGET_PROPERTIES = Arrays.asList(
+            MESHV_URI + "broader",
+            MESHV_URI + "term",
+            MESHV_URI + "concept",
+            RDFS.label.getURI());
+
+    public static List<String> TARGET_CLASSES = Arrays.asList(
+            MESHV_URI + "TopicalDescriptor",
+            MESHV_URI + "Descriptor");
+
+    Model schema;
+
+    public MeshVocabularyMaterializer(Model schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * @return the data model overlaid with a plain graph holding the entailed triples. The data graph itself
+     * is never written to, so this also works on read-only (e.g. TDB2) models.
+     */
+    public Model materialize(Model data) {
+        long startTime = System.currentTimeMillis();
+        Graph dataGraph = data.getGraph();
+        Graph entailed = GraphFactory.createGraphMem();
+
+        for( String q : TARGET_PROPERTIES ) {
+            Node qNode = this.schema.createProperty(q).asNode();
+            for( Node p : this.subsOf(qNode, RDFS.subPropertyOf.asNode()) ) {
+                ExtendedIterator<Triple> it = dataGraph.find(Node.ANY, p, Node.ANY);
+                while( it.hasNext() ) {
+                    Triple t = it.next();
+                    this.addEntailed(dataGraph, entailed, Triple.create(t.getSubject(), qNode, t.getObject()));
+                }
+            }
+        }
+
+        for( String c : TARGET_CLASSES ) {
+            Node cNode = this.schema.createResource(c).asNode();
+            for( Node sub : this.subsOf(cNode, RDFS.subClassOf.asNode()) ) {
+                ExtendedIterator<Triple> it = dataGraph.find(Node.ANY, RDF.Nodes.type, sub);
+                while( it.hasNext() ) {
+                    Triple t = it.next();
+                    this.addEntailed(dataGraph, entailed, Triple.create(t.getSubject(), RDF.Nodes.type, cNode));
+                }
+            }
+        }
+
+        System.err.println("Materialized " + entailed.size() + " MeSH vocabulary entailments in " +
+                (System.currentTimeMillis() - startTime) + " ms");
+        return ModelFactory.createModelForGraph(new Union(dataGraph, entailed));
+    }
+
+    private void addEntailed(Graph data, Graph entailed, Triple t) {
+        if( !data.contains(t) )
+            entailed.add(t);
+    }
+
+    //
+    // All strict sub-properties (or sub-classes) of node in the schema, following the relation transitively.
+    //
+    Set<Node> subsOf(Node node, Node relation) {
+        Graph g = this.schema.getGraph();
+        Set<Node> subs = new HashSet<Node>();
+        Deque<Node> todo = new ArrayDeque<Node>();
+        todo.add(node);
+        while( !todo.isEmpty() ) {
+            Node n = todo.poll();
+            ExtendedIterator<Triple> it = g.find(Node.ANY, relation, n);
+            while( it.hasNext() ) {
+                Node sub = it.next().getSubject();
+                if( !sub.equals(node) && subs.add(sub) )
+                    todo.add(sub);
+            }
+        }
+        return subs;
+    }
+}
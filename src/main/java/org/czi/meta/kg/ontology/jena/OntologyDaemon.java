@@ -0,0 +1,536 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.jena.rdf.model.Model;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.spi.RestOfArgumentsHandler;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long running process that keeps the ontologies in memory and runs the command line tools as jobs, so a
+ * batch of extractions pays for JVM startup and ontology parsing once.
+ *
+ * The daemon listens on a loopback port. A client (OntologyDaemon -client TOOL ARGS...) sends its working
+ * directory, the tool name and the tool's usual arguments; the job's output and exit status come back to the
+ * client as if the tool had run in it. Relative paths in File options (and -outStem) are resolved against the
+ * client's working directory.
+ *
+ * Jobs run with the daemon user's rights, so only that user may submit them: at startup the daemon writes a
+ * random token to a file only its owner can read (-tokenFile, ~/.ontology-daemon-PORT.token by default), and
+ * a connection has to open with the protocol's magic number and version followed by that token. Anything
+ * else, including a browser posting to the port, is turned away before a job is read. The argument count
+ * and the length of every string in the request are bounded.
+ *
+ * Models loaded through OntologyLoader stay resident (OntologyLoader.setResident), together with the
+ * indexes derived from them, and are shared by concurrent jobs; the tools only ever read them. Jobs run on a
+ * fixed pool of threads. A job that leaves out -cacheDir or -lang gets the daemon's own, and so the models
+ * loaded at startup; one that names other values (-lang "" for all languages) has its models loaded and kept
+ * next to those. OntologyLoader's -cacheDir and -lang are process wide, so jobs that set them differently
+ * from the running ones wait until those finish.
+ *
+ * Tools end through exit() rather than System.exit, which only ends the job when run here.
+ */
+public class OntologyDaemon {
+
+    public static String[] TOOLS = {"Extract_MONDO_Diseases", "QueryMondo", "JenaFunctions",
+            "ComputeMondoInheritanceDistance", "MeshToSkos", "AddMondoToSkos", "XrefProfiler", "SimilarDiseaseSearch"};
+
+    // path options that are not typed File (output file name prefixes)
+    public static String[] PATH_OPTIONS = {"-outStem"};
+
+    static final int MAGIC = 0x4f4e5444;     // "ONTD"
+    static final int VERSION = 1;
+    static final int MAX_ARGS = 1024;
+    static final int MAX_STRING = 8192;      // characters in the working directory, tool name or an argument
+    static final int HANDSHAKE_TIMEOUT_MS = 10000;
+
+    static final byte OUT = 1;
+    static final byte ERR = 2;
+    static final byte EXIT = 3;
+
+    static class JobExit extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        JobExit(int status) {
+            super("exit " + status);
+            this.status = status;
+        }
+    }
+
+    // output streams of the job the current thread works for; threads started by a job inherit them
+    static final InheritableThreadLocal<PrintStream[]> job = new InheritableThreadLocal<PrintStream[]>();
+
+    /**
+     * Ends the tool with status: the JVM from the command line, only the current job in the daemon.
+     */
+    public static void exit(int status) {
+        if( job.get() != null )
+            throw new JobExit(status);
+        System.exit(status);
+    }
+
+    ExecutorService workers;
+    ServerSocket socket;
+    File tokenFile;
+    byte[] token;
+
+    String settings = null;
+    int running = 0;
+
+    // the daemon's -cacheDir and -lang, for jobs that do not give their own
+    Map<String, String> jobDefaults = new LinkedHashMap<String, String>();
+
+    public OntologyDaemon(int threads) {
+        this.workers = Executors.newFixedThreadPool(threads);
+    }
+
+    public void setJobDefaults(File cacheDir, String lang) {
+        if( cacheDir != null )
+            this.jobDefaults.put("-cacheDir", cacheDir.getAbsolutePath());
+        if( lang != null )
+            this.jobDefaults.put("-lang", lang);
+    }
+
+    public static File defaultTokenFile(int port) {
+        return new File(System.getProperty("user.home"), ".ontology-daemon-" + port + ".token");
+    }
+
+    public void serve(int port, File tokenFile) throws IOException {
+        OntologyLoader.setResident(true);
+        ReachabilityIndex.register();
+        RestrictionIndex.register();
+        LabelTextIndex.register();
+
+        // System.out / System.err of a job go to its client, everything else to the daemon's own streams
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        System.setOut(new PrintStream(new Router(out, 0), true));
+        System.setErr(new PrintStream(new Router(err, 1), true));
+
+        this.socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.tokenFile = tokenFile;
+        this.token = writeToken(tokenFile).getBytes(StandardCharsets.US_ASCII);
+        out.println("Serving jobs on " + this.socket.getLocalSocketAddress() + ", token in " + tokenFile);
+        while( !this.socket.isClosed() ) {
+            Socket client;
+            try {
+                client = this.socket.accept();
+            } catch (IOException e) {
+                if( this.socket.isClosed() )
+                    break;
+                throw e;
+            }
+            this.workers.execute(() -> this.run(client));
+        }
+    }
+
+    public void stop() throws IOException {
+        this.socket.close();
+        this.workers.shutdownNow();
+        if( this.tokenFile != null )
+            this.tokenFile.delete();
+    }
+
+    //
+    // A new random token in a file readable and writable by its owner only. The file is created afresh, so
+    // one planted beforehand with looser permissions is never reused.
+    //
+    static String writeToken(File tokenFile) throws IOException {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        String token = Hex.encodeHexString(bytes);
+        Path path = tokenFile.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (FileAlreadyExistsException e) {
+            throw new IOException("Token file " + tokenFile + " was recreated while the daemon was writing it");
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(path);
+            tokenFile.setReadable(false, false);
+            tokenFile.setWritable(false, false);
+            tokenFile.setReadable(true, true);
+            tokenFile.setWritable(true, true);
+        }
+        Files.write(path, token.getBytes(StandardCharsets.US_ASCII));
+        tokenFile.deleteOnExit();
+        return token;
+    }
+
+    static String readToken(File tokenFile) throws IOException {
+        if( !tokenFile.isFile() )
+            throw new IOException("No daemon token in " + tokenFile + "; is the daemon running on this port?");
+        return new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.US_ASCII).trim();
+    }
+
+    //
+    // Thrown for a request that does not follow the protocol; the client is told why before it is dropped.
+    //
+    static class BadRequest extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BadRequest(String message) {
+            super(message);
+        }
+    }
+
+    static String readString(DataInputStream in, String what) throws IOException {
+        String s = in.readUTF();   // at most 65535 bytes on the wire
+        if( s.length() > MAX_STRING )
+            throw new BadRequest(what + " longer than " + MAX_STRING + " characters");
+        return s;
+    }
+
+    void run(Socket client) {
+        long startTime = System.currentTimeMillis();
+        try (Socket s = client) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream frames = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            File cwd;
+            String tool;
+            String[] args;
+            try {
+                s.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                int magic = in.readInt();
+                if( magic != MAGIC )
+                    throw new BadRequest("Not an OntologyDaemon client");
+                int version = in.readInt();
+                if( version != VERSION )
+                    throw new BadRequest("Protocol version " + version + ", the daemon speaks " + VERSION);
+                byte[] token = readString(in, "Token").getBytes(StandardCharsets.US_ASCII);
+                if( !MessageDigest.isEqual(token, this.token) )
+                    throw new BadRequest("Wrong token, see the daemon's token file");
+                cwd = new File(readString(in, "Working directory"));
+                tool = readString(in, "Tool name");
+                int count = in.readInt();
+                if( count < 0 || count > MAX_ARGS )
+                    throw new BadRequest("Argument count " + count + " not in 0.." + MAX_ARGS);
+                args = new String[count];
+                for( int i = 0; i < args.length; i++ )
+                    args[i] = readString(in, "Argument");
+                s.setSoTimeout(0);
+            } catch (BadRequest e) {
+                System.err.println("Rejected connection: " + e.getMessage());
+                frames.writeByte(ERR);
+                byte[] message = (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+                frames.writeInt(message.length);
+                frames.write(message);
+                frames.writeByte(EXIT);
+                frames.writeInt(-1);
+                frames.flush();
+                return;
+            }
+
+            PrintStream out = new PrintStream(new Frames(frames, OUT), true, "UTF-8");
+            PrintStream err = new PrintStream(new Frames(frames, ERR), true, "UTF-8");
+            int status = 0;
+            job.set(new PrintStream[]{out, err});
+            try {
+                status = this.runJob(tool, cwd, args);
+            } catch (JobExit e) {
+                status = e.status;
+            } catch (Throwable t) {
+                t.printStackTrace(err);
+                status = 1;
+            } finally {
+                job.remove();
+            }
+            out.flush();
+            err.flush();
+            synchronized( frames ) {
+                frames.writeByte(EXIT);
+                frames.writeInt(status);
+                frames.flush();
+            }
+            System.out.println(tool + " " + String.join(" ", args) + " exited " + status + " after " +
+                    (System.currentTimeMillis() - startTime) + " ms");
+        } catch (IOException e) {
+            System.err.println("Job aborted: " + e.getMessage());
+        }
+    }
+
+    int runJob(String tool, File cwd, String[] args) throws Throwable {
+        if( !Arrays.asList(TOOLS).contains(tool) ) {
+            System.err.println("Unknown tool " + tool + ", one of " + String.join(" ", TOOLS));
+            return -1;
+        }
+        Class<?> cls = Class.forName(OntologyDaemon.class.getPackage().getName() + "." + tool);
+        Class<?> options = Class.forName(cls.getName() + "$Options");
+        args = withDefaults(options, this.jobDefaults, resolveFiles(options, cwd, args));
+
+        String settings = option(args, "-cacheDir") + "\t" + option(args, "-lang");
+        this.enter(settings);
+        try {
+            cls.getMethod("main", String[].class).invoke(null, (Object) args);
+            return 0;
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            this.leave();
+        }
+    }
+
+    synchronized void enter(String settings) throws InterruptedException {
+        while( this.running > 0 && !settings.equals(this.settings) )
+            this.wait();
+        this.settings = settings;
+        this.running++;
+    }
+
+    synchronized void leave() {
+        if( --this.running == 0 )
+            this.notifyAll();
+    }
+
+    //
+    // The values of the tool's File (and path) options, made absolute against the client's working directory.
+    //
+    static String[] resolveFiles(Class<?> options, File cwd, String[] args) {
+        Set<String> fileOptions = new HashSet<String>(Arrays.asList(PATH_OPTIONS));
+        for( Field f : options.getFields() ) {
+            Option o = f.getAnnotation(Option.class);
+            if( o != null && f.getType() == File.class )
+                fileOptions.add(o.name());
+        }
+        String[] resolved = args.clone();
+        for( int i = 0; i + 1 < args.length; i++ ) {
+            if( fileOptions.contains(args[i]) && !new File(args[i + 1]).isAbsolute() )
+                resolved[i + 1] = new File(cwd, args[i + 1]).getPath();
+        }
+        return resolved;
+    }
+
+    //
+    // args preceded by the default of every option in defaults that the tool has and args leave out.
+    //
+    static String[] withDefaults(Class<?> options, Map<String, String> defaults, String[] args) {
+        Set<String> names = new HashSet<String>();
+        for( Field f : options.getFields() ) {
+            Option o = f.getAnnotation(Option.class);
+            if( o != null )
+                names.add(o.name());
+        }
+        List<String> given = Arrays.asList(args);
+        List<String> all = new ArrayList<String>();
+        for( Map.Entry<String, String> d : defaults.entrySet() ) {
+            if( names.contains(d.getKey()) && !given.contains(d.getKey()) ) {
+                all.add(d.getKey());
+                all.add(d.getValue());
+            }
+        }
+        all.addAll(given);
+        return all.toArray(new String[0]);
+    }
+
+    static String option(String[] args, String name) {
+        for( int i = 0; i + 1 < args.length; i++ ) {
+            if( args[i].equals(name) )
+                return args[i + 1];
+        }
+        return "";
+    }
+
+    //
+    // Output of the current job if there is one, out otherwise.
+    //
+    static class Router extends OutputStream {
+        final PrintStream out;
+        final int stream;
+
+        Router(PrintStream out, int stream) {
+            this.out = out;
+            this.stream = stream;
+        }
+
+        OutputStream target() {
+            PrintStream[] streams = job.get();
+            return streams == null ? this.out : streams[this.stream];
+        }
+
+        public void write(int b) throws IOException {
+            this.target().write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.target().write(b, off, len);
+        }
+
+        public void flush() throws IOException {
+            this.target().flush();
+        }
+    }
+
+    //
+    // Bytes written to one of the job's streams, as (stream, length, bytes) frames on the client connection.
+    //
+    static class Frames extends OutputStream {
+        final DataOutputStream frames;
+        final byte stream;
+
+        Frames(DataOutputStream frames, byte stream) {
+            this.frames = frames;
+            this.stream = stream;
+        }
+
+        public void write(int b) throws IOException {
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized( this.frames ) {
+                this.frames.writeByte(this.stream);
+                this.frames.writeInt(len);
+                this.frames.write(b, off, len);
+            }
+        }
+
+        public void flush() throws IOException {
+            synchronized( this.frames ) {
+                this.frames.flush();
+            }
+        }
+    }
+
+    /**
+     * Runs tool with args in the daemon listening on port, copying its output here.
+     *
+     * @return the job's exit status
+     */
+    public static int submit(int port, File tokenFile, String tool, String[] args) throws IOException {
+        String token = readToken(tokenFile);
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(token);
+            out.writeUTF(new File("").getAbsolutePath());
+            out.writeUTF(tool);
+            out.writeInt(args.length);
+            for( String a : args )
+                out.writeUTF(a);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            byte[] buf = new byte[8192];
+            while( true ) {
+                byte stream = in.readByte();
+                if( stream == EXIT ) {
+                    System.out.flush();
+                    return in.readInt();
+                }
+                int len = in.readInt();
+                if( len > buf.length )
+                    buf = new byte[len];
+                in.readFully(buf, 0, len);
+                (stream == OUT ? System.out : System.err).write(buf, 0, len);
+            }
+        }
+    }
+
+    public static class Options {
+
+        @Option(name = "-client", usage = "Submit TOOL ARGS... to a running daemon instead of starting one", required = false)
+        public boolean client = false;
+
+        @Option(name = "-port", usage = "Loopback Port (default 7171)", required = false, metaVar = "PORT")
+        public int port = 7171;
+
+        @Option(name = "-tokenFile", usage = "Token File (default ~/.ontology-daemon-PORT.token)", required = false, metaVar = "TOKEN-FILE")
+        public File tokenFile;
+
+        @Option(name = "-threads", usage = "Concurrent Jobs (default: all cores)", required = false, metaVar = "THREADS")
+        public int threads = Runtime.getRuntime().availableProcessors();
+
+        @Option(name = "-mondoFile", usage = "MONDO File to load at startup", required = false, metaVar = "MONDO-FILE")
+        public File mondoFile;
+
+        @Option(name = "-meshFile", usage = "Mesh File to load at startup", required = false, metaVar = "MESH-FILE")
+        public File meshFile;
+
+        @Option(name = "-cacheDir", usage = "Parsed Snapshot Cache Directory for the startup loads and jobs without one", required = false, metaVar = "CACHE-DIR")
+        public File cacheDir;
+
+        @Option(name = "-lang", usage = "Keep only MONDO literals in these languages (e.g. en) for the startup loads and jobs without -lang", required = false, metaVar = "LANGS")
+        public String lang;
+
+        @Argument(usage = "Tool and its arguments (with -client)", metaVar = "TOOL ARGS...", handler = RestOfArgumentsHandler.class)
+        public List<String> job = new ArrayList<String>();
+
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        long startTime = System.currentTimeMillis();
+
+        Options options = new Options();
+
+        CmdLineParser parser = new CmdLineParser(options);
+
+        try {
+
+            parser.parseArgument(args);
+            if( options.client && options.job.isEmpty() ) {
+                throw new CmdLineException(parser, "-client requires a tool, one of " + String.join(" ", TOOLS));
+            }
+
+        } catch (CmdLineException e) {
+
+            System.err.println(e.getMessage());
+            System.err.print("Arguments: ");
+            parser.printSingleLineUsage(System.err);
+            System.err.println("\n\n Options: \n");
+            parser.printUsage(System.err);
+            System.exit(-1);
+
+        }
+
+        File tokenFile = options.tokenFile != null ? options.tokenFile : defaultTokenFile(options.port);
+        if( options.client ) {
+            List<String> jobArgs = options.job.subList(1, options.job.size());
+            System.exit(submit(options.port, tokenFile, options.job.get(0), jobArgs.toArray(new String[0])));
+        }
+
+        OntologyLoader.setResident(true);
+        OntologyLoader.setCacheDir(options.cacheDir);
+        OntologyLoader.setLanguages(options.lang);
+        if( options.mondoFile != null ) {
+            Model mondoModel = OntologyLoader.loadMondo(options.mondoFile);
+            ReachabilityIndex.of(mondoModel);
+            RestrictionIndex.of(mondoModel);
+            LabelTextIndex.of(mondoModel);
+        }
+        if( options.meshFile != null )
+            OntologyLoader.loadMesh(options.meshFile);
+        System.out.println("Ready in " + (System.currentTimeMillis() - startTime) + " ms");
+
+        OntologyDaemon daemon = new OntologyDaemon(options.threads);
+        daemon.setJobDefaults(options.cacheDir, options.lang);
+        daemon.serve(options.port, tokenFile);
+
+    }
+}
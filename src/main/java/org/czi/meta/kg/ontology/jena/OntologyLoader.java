@@ -0,0 +1,206 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Single entry point used by the tools to read the MONDO and MeSH source files.
+ *
+ * When a cache directory is configured (-cacheDir) the first load of a file writes an RDF-Thrift snapshot
+ * keyed by the SHA-256 of the source file. Later loads of the same release read the binary snapshot and
+ * skip Turtle / N-Triples tokenizing altogether.
+ *
+ * MONDO is streamed through a TripleProjection so that only the predicates the tools query are kept
+ * in memory (axiom annotations make up most of the file and are never read).
+ */
+public class OntologyLoader {
+
+    static DiskCache snapshotCache = null;
+    static TripleProjection mondoProjection = TripleProjection.MONDO;
+
+    // SHA-256 of the source file each loaded graph was read from, for indexes derived from the graph
+    static Map<Graph, String> sources = Collections.synchronizedMap(new WeakHashMap<Graph, String>());
+
+    // source digest plus projection of each loaded graph, i.e. a fingerprint of its content, for query results
+    static Map<Graph, String> fingerprints = Collections.synchronizedMap(new WeakHashMap<Graph, String>());
+
+    // models kept in memory (see setResident), by file, variant and projection; one version of each file
+    static Map<String, Resident> resident = null;
+
+    static final class Resident {
+        final String stamp;     // modification time and size of the file the model was read from
+        final CompletableFuture<Model> model = new CompletableFuture<Model>();
+
+        Resident(String stamp) {
+            this.stamp = stamp;
+        }
+    }
+
+    public static void setCacheDir(File cacheDir) {
+        if( cacheDir == null )
+            snapshotCache = null;
+        else if( snapshotCache != null && snapshotCache.cacheDir.equals(cacheDir) )
+            return;
+        else
+            snapshotCache = new DiskCache(cacheDir);
+    }
+
+    /**
+     * Keeps every model loaded from here in memory and hands the same instance to later loads of the same
+     * (unchanged) file, as OntologyDaemon does for its jobs. Callers must then treat loaded models as read-only.
+     *
+     * A file that changed on disk (a new release at the same path) is read again and its new model replaces
+     * the old one, so only the latest version of each file stays resident. Different projections of a file
+     * (-lang settings) are separate models.
+     */
+    public static synchronized void setResident(boolean keep) {
+        if( !keep )
+            resident = null;
+        else if( resident == null )
+            resident = new ConcurrentHashMap<String, Resident>();
+    }
+
+    /**
+     * Restricts language-tagged MONDO literals to the given comma separated languages (e.g. "en").
+     */
+    public static void setLanguages(String languages) {
+        if( languages == null || languages.isEmpty() )
+            mondoProjection = TripleProjection.MONDO;
+        else
+            mondoProjection = TripleProjection.MONDO.withLanguages(languages.split(","));
+    }
+
+    public static Model loadMondo(File mondoFile) throws IOException {
+        return loadMondo(mondoFile, mondoProjection);
+    }
+
+    /**
+     * @param projection triples to keep, or null to load the complete graph
+     */
+    public static Model loadMondo(File mondoFile, TripleProjection projection) throws IOException {
+        return load(mondoFile, Lang.TTL, "mondo", projection);
+    }
+
+    /**
+     * MeSH is distributed in several syntaxes (and gzipped), so the language is guessed from the file name
+     * the same way FileManager.loadModel did.
+     */
+    public static Model loadMesh(File meshFile) throws IOException {
+        return load(meshFile, null, "mesh", null);
+    }
+
+    /**
+     * @return the SHA-256 of the file graph was loaded from, or null if it was not loaded through the
+     * snapshot cache
+     */
+    public static String sourceDigest(Graph graph) {
+        return sources.get(graph);
+    }
+
+    /**
+     * @return the content fingerprint of graph, or null if it was not loaded through the snapshot cache
+     */
+    public static String fingerprint(Graph graph) {
+        return fingerprints.get(graph);
+    }
+
+    /**
+     * @return the fingerprint loadMondo(mondoFile) would give its graph, without loading it, or null when
+     * there is no snapshot cache
+     */
+    public static String mondoFingerprint(File mondoFile) throws IOException {
+        if( snapshotCache == null )
+            return null;
+        return fingerprint(mondoFile, "mondo", mondoProjection);
+    }
+
+    static String fingerprint(File source, String variant, TripleProjection projection) throws IOException {
+        if( projection != null )
+            variant = variant + "-" + projection.id();
+        return variant + "-" + DiskCache.sha256(source);
+    }
+
+    static Model load(File source, Lang lang, String variant, TripleProjection projection) throws IOException {
+        Map<String, Resident> resident = OntologyLoader.resident;
+        if( resident == null )
+            return read(source, lang, variant, projection);
+
+        File file = source.getCanonicalFile();
+        String key = file.getPath() + "\t" + variant + "\t" + (projection == null ? "all" : projection.id());
+        String stamp = file.lastModified() + "\t" + file.length();
+        Resident loading = new Resident(stamp);
+        Resident loaded = resident.compute(key, (k, r) -> r != null && r.stamp.equals(stamp) ? r : loading);
+        if( loaded == loading ) {
+            // first load of this version of the file: everyone else asking for it waits for this one, and the
+            // model of an older version is let go (jobs still using it keep their reference)
+            try {
+                loading.model.complete(read(source, lang, variant, projection));
+            } catch (IOException | RuntimeException e) {
+                resident.remove(key, loading);
+                loading.model.completeExceptionally(e);
+                throw e;
+            }
+            return loading.model.join();
+        }
+        try {
+            Model model = loaded.model.get();
+            System.err.println("Using resident " + source.getName());
+            return model;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            if( e.getCause() instanceof IOException )
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    static Model read(File source, Lang lang, String variant, TripleProjection projection) throws IOException {
+        long startTime = System.currentTimeMillis();
+        Model model = ModelFactory.createDefaultModel();
+
+        if( snapshotCache == null ) {
+            parse(model, source, lang, projection);
+            return model;
+        }
+
+        String digest = DiskCache.sha256(source);
+        sources.put(model.getGraph(), digest);
+        String fingerprint = fingerprint(source, variant, projection);
+        fingerprints.put(model.getGraph(), fingerprint);
+        String key = fingerprint + ".rt";
+        File snapshot = snapshotCache.get(key);
+        if( snapshot != null ) {
+            RDFDataMgr.read(model, snapshot.getPath(), Lang.RDFTHRIFT);
+            System.err.println("Loaded " + source.getName() + " from snapshot " + key + " in " +
+                    (System.currentTimeMillis() - startTime) + " ms");
+            return model;
+        }
+
+        parse(model, source, lang, projection);
+        snapshotCache.put(key, out -> RDFDataMgr.write(out, model, RDFFormat.RDF_THRIFT));
+        System.err.println("Parsed " + source.getName() + " and wrote snapshot " + key + " in " +
+                (System.currentTimeMillis() - startTime) + " ms");
+        return model;
+    }
+
+    static void parse(Model model, File source, Lang lang, TripleProjection projection) throws IOException {
+        StreamRDF dest = StreamRDFLib.graph(model.getGraph());
+        if( projection != null )
+            dest = projection.filter(dest);
+        RDFParser.source(source.getPath()).lang(lang).parse(dest);
+    }
+}
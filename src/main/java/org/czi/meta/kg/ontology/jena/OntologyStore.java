@@ -0,0 +1,163 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.tdb2.DatabaseMgr;
+import org.apache.jena.tdb2.loader.DataLoader;
+import org.apache.jena.tdb2.loader.LoaderFactory;
+import org.apache.jena.tdb2.loader.base.LoaderOps;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+
+/**
+ * TDB2 dataset holding MONDO, MeSH and the generated META-SKOS taxonomy as named graphs.
+ *
+ * The store is built once with the bulk loader (see main). The other tools open it with their
+ * -storeDir option and run their queries inside a read transaction instead of re-parsing
+ * the Turtle files on every run.
+ */
+public class OntologyStore {
+
+    public static String GRAPH_URI = "http://meta.org/graph/";
+    public static String MONDO_GRAPH = GRAPH_URI + "mondo";
+    public static String MESH_GRAPH = GRAPH_URI + "mesh";
+    public static String SKOS_GRAPH = GRAPH_URI + "skos";
+
+    DatasetGraph dsg;
+    Dataset dataset;
+
+    private OntologyStore(DatasetGraph dsg) {
+        this.dsg = dsg;
+        this.dataset = DatasetFactory.wrap(dsg);
+    }
+
+    public static OntologyStore open(File storeDir) {
+        if( !storeDir.isDirectory() ) {
+            throw new IllegalArgumentException("No ontology store found at " + storeDir.getPath());
+        }
+        return new OntologyStore(DatabaseMgr.connectDatasetGraph(storeDir.getPath()));
+    }
+
+    static OntologyStore create(File storeDir) {
+        storeDir.mkdirs();
+        return new OntologyStore(DatabaseMgr.connectDatasetGraph(storeDir.getPath()));
+    }
+
+    public Dataset getDataset() {
+        return this.dataset;
+    }
+
+    public Model getMondoModel() {
+        return this.dataset.getNamedModel(MONDO_GRAPH);
+    }
+
+    public Model getMeshModel() {
+        return this.dataset.getNamedModel(MESH_GRAPH);
+    }
+
+    public Model getSkosModel() {
+        return this.dataset.getNamedModel(SKOS_GRAPH);
+    }
+
+    /**
+     * Starts a read transaction; models returned by this store may only be used between begin() and end().
+     */
+    public void begin() {
+        this.dataset.begin(ReadWrite.READ);
+    }
+
+    public void end() {
+        this.dataset.end();
+    }
+
+    //
+    // Replace the contents of one named graph with the contents of a file, using the TDB2 parallel
+    // bulk loader. The graph is cleared in its own write transaction since the loader manages its own.
+    //
+    void load(File file, String graphUri) {
+        Node g = NodeFactory.createURI(graphUri);
+
+        this.dataset.begin(ReadWrite.WRITE);
+        try {
+            this.dsg.removeGraph(g);
+            this.dataset.commit();
+        } finally {
+            this.dataset.end();
+        }
+
+        long startTime = System.currentTimeMillis();
+        DataLoader loader = LoaderFactory.parallelLoader(this.dsg, g, LoaderOps.outputTo(System.err));
+        loader.startBulk();
+        try {
+            loader.load(file.getPath());
+            loader.finishBulk();
+        } catch (RuntimeException e) {
+            loader.finishException(e);
+            throw e;
+        }
+        System.err.println("Loaded " + file.getName() + " into <" + graphUri + ">: " +
+                (loader.countTriples() + loader.countQuads()) + " triples in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    public static class Options {
+
+        @Option(name = "-storeDir", usage = "TDB2 Store Directory", required = true, metaVar = "STORE-DIR")
+        public File storeDir;
+
+        @Option(name = "-mondoFile", usage = "MONDO File", required = false, metaVar = "MONDO-FILE")
+        public File mondoFile;
+
+        @Option(name = "-meshFile", usage = "Input Mesh File", required = false, metaVar = "MESH-FILE")
+        public File meshFile;
+
+        @Option(name = "-skosFile", usage = "Meta-SKOS File", required = false, metaVar = "SKOS-FILE")
+        public File skosFile;
+
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        Options options = new Options();
+
+        CmdLineParser parser = new CmdLineParser(options);
+
+        try {
+
+            parser.parseArgument(args);
+            if( options.mondoFile == null && options.meshFile == null && options.skosFile == null ) {
+                throw new CmdLineException(parser, "At least one of -mondoFile, -meshFile or -skosFile is required");
+            }
+
+        } catch (CmdLineException e) {
+
+            System.err.println(e.getMessage());
+            System.err.print("Arguments: ");
+            parser.printSingleLineUsage(System.err);
+            System.err.println("\n\n Options: \n");
+            parser.printUsage(System.err);
+            System.exit(-1);
+
+        }
+
+        OntologyStore store = OntologyStore.create(options.storeDir);
+        if( options.mondoFile != null )
+            store.load(options.mondoFile, MONDO_GRAPH);
+        if( options.meshFile != null )
+            store.load(options.meshFile, MESH_GRAPH);
+        if( options.skosFile != null )
+            store.load(options.skosFile, SKOS_GRAPH);
+
+    }
+}
@@ -0,0 +1,107 @@
+package org.czi.meta.kg.ontology.jena;
+
+import com.univocity.parsers.tsv.TsvParser;
+import com.univocity.parsers.tsv.TsvParserSettings;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a per-pair computation over a TSV of class pairs (first two columns) on a ForkJoinPool.
+ *
+ * The input is read in fixed-size batches; each batch is split recursively across the pool and its
+ * output lines are written in input order before the next batch is read, so memory stays bounded
+ * regardless of the size of the pair list.
+ */
+public class PairBatch {
+
+    static final int BATCH_SIZE = 1 << 18;
+    static final int LEAF_SIZE = 2048;
+
+    public interface PairFormatter {
+        /**
+         * @return the output line (without line separator) for the pair a, b as given in the input
+         */
+        String format(String a, String b);
+    }
+
+    static class PairTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        PairFormatter formatter;
+        String[][] pairs;
+        String[] out;
+        int from;
+        int to;
+
+        PairTask(PairFormatter formatter, String[][] pairs, String[] out, int from, int to) {
+            this.formatter = formatter;
+            this.pairs = pairs;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if( this.to - this.from <= LEAF_SIZE ) {
+                for( int i = this.from; i < this.to; i++ )
+                    this.out[i] = this.formatter.format(this.pairs[i][0], this.pairs[i][1]);
+                return;
+            }
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new PairTask(this.formatter, this.pairs, this.out, this.from, mid),
+                    new PairTask(this.formatter, this.pairs, this.out, mid, this.to));
+        }
+    }
+
+    /**
+     * @param header first output line, without line separator
+     * @return number of pairs processed
+     */
+    public static long run(File pairsFile, File outFile, String header, int threads, PairFormatter formatter)
+            throws IOException {
+        long startTime = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        TsvParserSettings settings = new TsvParserSettings();
+        settings.getFormat().setLineSeparator("\n");
+        TsvParser p = new TsvParser(settings);
+        long total = 0;
+        try (Reader in = new BufferedReader(new FileReader(pairsFile));
+             BufferedWriter w = new BufferedWriter(new FileWriter(outFile), 1 << 16)) {
+            w.write(header);
+            w.write('\n');
+            p.beginParsing(in);
+            List<String[]> batch = new ArrayList<String[]>(BATCH_SIZE);
+            String[] row;
+            while( true ) {
+                row = p.parseNext();
+                if( row != null && row.length >= 2 && row[0] != null && row[1] != null )
+                    batch.add(row);
+                if( batch.size() == BATCH_SIZE || (row == null && !batch.isEmpty()) ) {
+                    String[][] pairs = batch.toArray(new String[0][]);
+                    String[] out = new String[pairs.length];
+                    pool.invoke(new PairTask(formatter, pairs, out, 0, pairs.length));
+                    for( String line : out ) {
+                        w.write(line);
+                        w.write('\n');
+                    }
+                    total += pairs.length;
+                    batch.clear();
+                }
+                if( row == null )
+                    break;
+            }
+        } finally {
+            p.stopParsing();
+            pool.shutdown();
+        }
+        long ms = System.currentTimeMillis() - startTime;
+        System.err.println("Processed " + total + " pairs with " + threads + " threads in " + ms + " ms (" +
+                (ms == 0 ? total : total * 60000L / ms) + " pairs/min)");
+        return total;
+    }
+}
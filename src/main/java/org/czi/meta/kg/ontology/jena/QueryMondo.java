@@ -41,14 +41,54 @@ public class QueryMondo {
 
     public QueryMondo() throws IOException {}
 
+    /**
+     * Same rows as the SPARQL query in main, answered in place from a hierarchy snapshot: every owl:Class
+     * below root with its labels and exact synonyms.
+     */
+    static StringPool queryNames(HierarchySnapshot snapshot, String root) {
+        StringPool names = new StringPool();
+        int r = snapshot.id(root);
+        if( r < 0 )
+            return names;
+        for( int d : snapshot.descendants(r) ) {
+            if( !snapshot.isClass(d) )
+                continue;
+            for( int l = 0; l < snapshot.labelCount(d); l++ ) {
+                String dName = snapshot.label(d, l);
+                for( int s = 0; s < snapshot.synonymCount(d); s++ ) {
+                    String synonym = snapshot.synonym(d, s);
+                    names.intern(dName);
+                    names.intern(synonym);
+                    System.out.println(snapshot.iri(d)+"\t"+dName+"\t"+synonym);
+                }
+            }
+        }
+        return names;
+    }
+
     public static class Options {
 
-        @Option(name = "-mondoFile", usage = "MONDO File", required = true, metaVar = "MONDO-FILE")
+        @Option(name = "-mondoFile", usage = "MONDO File", required = false, metaVar = "MONDO-FILE")
         public File mondoFile;
 
+        @Option(name = "-storeDir", usage = "TDB2 Store Directory (instead of -mondoFile)", required = false, metaVar = "STORE-DIR")
+        public File storeDir;
+
+        @Option(name = "-snapshotFile", usage = "Hierarchy Snapshot File (instead of -mondoFile)", required = false, metaVar = "SNAPSHOT-FILE")
+        public File snapshotFile;
+
         @Option(name = "-outFile", usage = "OUT File", required = true, metaVar = "OUT-FILE")
         public File outFile;
 
+        @Option(name = "-root", usage = "Root MONDO Class (default MONDO_0004976)", required = false, metaVar = "MONDO-ID")
+        public String root = "MONDO_0004976";
+
+        @Option(name = "-cacheDir", usage = "Parsed Snapshot Cache Directory", required = false, metaVar = "CACHE-DIR")
+        public File cacheDir;
+
+        @Option(name = "-lang", usage = "Keep only MONDO literals in these languages (e.g. en)", required = false, metaVar = "LANGS")
+        public String lang;
+
     }
 
     /**
@@ -66,6 +106,12 @@ public class QueryMondo {
         try {
 
             parser.parseArgument(args);
+            if( options.mondoFile == null && options.storeDir == null && options.snapshotFile == null ) {
+                throw new CmdLineException(parser, "One of -mondoFile, -storeDir or -snapshotFile is required");
+            }
+            if( !options.root.matches("MONDO_[0-9]+") ) {
+                throw new CmdLineException(parser, "-root must be a MONDO id such as MONDO_0004976, not " + options.root);
+            }
 
         } catch (CmdLineException e) {
 
@@ -74,57 +120,110 @@ public class QueryMondo {
             parser.printSingleLineUsage(System.err);
             System.err.println("\n\n Options: \n");
             parser.printUsage(System.err);
-            System.exit(-1);
+            OntologyDaemon.exit(-1);
 
         }
 
+        OntologyLoader.setCacheDir(options.cacheDir);
+        OntologyLoader.setLanguages(options.lang);
+        ReachabilityIndex.register();
+
         FileWriter fw = new FileWriter(options.outFile);
         Writer w = new BufferedWriter(fw);
 
-        Model mondoModel = ModelFactory.createDefaultModel();
-        mondoModel.read(new FileInputStream(options.mondoFile), null, "TTL");
+        if( options.snapshotFile != null ) {
+            writeNames(queryNames(HierarchySnapshot.open(options.snapshotFile), OBO_URI + options.root), w);
+            return;
+        }
 
-        String activeQuery = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
+        ParameterizedSparqlString activeQuery = new ParameterizedSparqlString("PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
                 "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
                 "PREFIX owl: <http://www.w3.org/2002/07/owl#>\n" +
                 "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
                 "PREFIX obo: <http://purl.obolibrary.org/obo/>\n" +
+                "PREFIX meta: <http://meta.org/fn#>\n" +
                 "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n" +
                 "PREFIX oboInOwl: <http://www.geneontology.org/formats/oboInOwl#>\n" +
                 "SELECT DISTINCT ?d ?dName ?synonym\n" +
                 "WHERE {\n" +
                 "  ?d rdf:type owl:Class .\n" +
                 "  ?d rdfs:label ?dName .\n" +
-                "  ?d rdfs:subClassOf+ obo:MONDO_0004976 .\n" +
+                "  ?d meta:descendantOf ?root .\n" +
                 "  ?d oboInOwl:hasExactSynonym ?synonym \n" +
 
                 //"  ?d rdfs:subClassOf+ obo:MONDO_0000001 .\n" +
                 //"  FILTER NOT EXISTS { [] rdfs:subClassOf ?d }\n" +
-                "} \n";
+                "} \n");
+        activeQuery.setIri("root", OBO_URI + options.root);
+
+        Query query = activeQuery.asQuery();
+
+        //
+        // With a cache directory the results for this MONDO release come from the result cache, and MONDO is
+        // only loaded on a miss.
+        //
+        QueryResultCache resultCache = QueryResultCache.shared();
+        String fingerprint = options.mondoFile != null ? OntologyLoader.mondoFingerprint(options.mondoFile) : null;
+        if( options.storeDir == null && resultCache != null && fingerprint != null ) {
+            ResultSet results = resultCache.select(QueryResultCache.key(fingerprint, query), () -> {
+                Model mondoModel = OntologyLoader.loadMondo(options.mondoFile);
+                QueryExecution miss = QueryExecutionFactory.create(query, mondoModel);
+                return QueryResultCache.closing(miss.execSelect(), miss::close);
+            });
+            writeNames(results, w);
+            return;
+        }
+
+        Model mondoModel;
+        OntologyStore store = null;
+        if( options.storeDir != null ) {
+            store = OntologyStore.open(options.storeDir);
+            store.begin();
+            mondoModel = store.getMondoModel();
+        } else {
+            mondoModel = OntologyLoader.loadMondo(options.mondoFile);
+        }
 
-        Query query = QueryFactory.create(activeQuery);
         QueryExecution qexec = QueryExecutionFactory.create(query, mondoModel);
         ResultSet results = qexec.execSelect();
 
+        writeNames(results, w);
+        qexec.close();
+        if( store != null )
+            store.end();
+    }
+
+    static void writeNames(ResultSet results, Writer w) throws IOException {
+
         //
         // Given a leaf, trace it's subClassOf hierarchy back up the hierarchy until it hits a MeSH-encoded node in
         // the hierarchy and  link it up  and then move to the next leaf. If a node has already been added, move to
         // the next leaf. Should behave like a depth first search.
         //
-        HashSet<String> names = new HashSet<String>();
-        for (; results.hasNext();) {
-            QuerySolution soln = results.nextSolution();
-            Resource d = soln.getResource("d");
-            Literal dName = soln.getLiteral("dName");
-            Literal synonym = soln.getLiteral("synonym");
-            names.add(dName.getString());
-            names.add(synonym.getString());
-            System.out.println(d.getURI()+"\t"+dName.getString()+"\t"+synonym.getString());
+        StringPool names = new StringPool();
+        try {
+            for (; results.hasNext();) {
+                QuerySolution soln = results.nextSolution();
+                Resource d = soln.getResource("d");
+                Literal dName = soln.getLiteral("dName");
+                Literal synonym = soln.getLiteral("synonym");
+                names.intern(dName.getString());
+                names.intern(synonym.getString());
+                System.out.println(d.getURI()+"\t"+dName.getString()+"\t"+synonym.getString());
+            }
+        } finally {
+            QueryResultCache.close(results);
         }
+        writeNames(names, w);
+    }
 
-        for (String n : names) {
-            w.write(n + '\n');
+    //
+    // Every distinct name, in the order first seen.
+    //
+    static void writeNames(StringPool names, Writer w) throws IOException {
+        for (int n = 0; n < names.size(); n++) {
+            w.write(names.get(n) + '\n');
         }
         w.close();
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,179 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.*;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.core.Substitute;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.ResultSetStream;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named SPARQL SELECT templates, read from src/main/resources/sparql/NAME.rq.
+ *
+ * The shared PREFIX block (sparql/prefixes.rq) is prepended to every template, so templates only hold the
+ * query itself. Each template is parsed, compiled to algebra and optimized once per JVM; executions reuse
+ * that plan and bind parameters (template variables such as ?namespace) by substituting constants into
+ * it, so running the same query for several values costs no parsing or planning.
+ *
+ * Prepared queries are immutable and can be run from several threads at once.
+ */
+public class QueryRegistry {
+
+    public static String RESOURCE_DIR = "sparql/";
+    public static String PREFIXES = "prefixes";
+
+    public static final class Prepared {
+        final String name;
+        final Query query;
+        final Op op;
+
+        Prepared(String name, Query query, Op op) {
+            this.name = name;
+            this.query = query;
+            this.op = op;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public Query getQuery() {
+            return this.query;
+        }
+
+        public List<String> getResultVars() {
+            return this.query.getResultVars();
+        }
+
+        /**
+         * Runs the plan over graph with params (may be null) substituted in.
+         */
+        public QueryIterator exec(Graph graph, Binding params) {
+            Op bound = params == null ? this.op : Substitute.substitute(this.op, params);
+            return Algebra.exec(bound, graph);
+        }
+
+        public ResultSet select(Model model) {
+            return this.select(model, null);
+        }
+
+        /**
+         * Results come from the QueryResultCache when the model has a content fingerprint and a cache
+         * directory is set, and are stored there on a miss; either way rows stream as they are consumed.
+         */
+        public ResultSet select(Model model, QuerySolutionMap params) {
+            Binding b = params == null ? null : binding(params);
+            String fingerprint = OntologyLoader.fingerprint(model.getGraph());
+            QueryResultCache cache = QueryResultCache.shared();
+            if( fingerprint == null || cache == null )
+                return this.stream(model, b);
+            try {
+                return cache.select(this.cacheKey(fingerprint, params), () -> this.stream(model, b));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private ResultSet stream(Model model, Binding params) {
+            QueryIterator rows = this.exec(model.getGraph(), params);
+            return QueryResultCache.closing(new ResultSetStream(this.getResultVars(), model, rows), rows::close);
+        }
+
+        /**
+         * @return the QueryResultCache key of this query with params over a model with the given fingerprint
+         */
+        public String cacheKey(String fingerprint, QuerySolutionMap params) {
+            Op bound = params == null ? this.op : Substitute.substitute(this.op, binding(params));
+            return QueryResultCache.key(fingerprint, bound.toString());
+        }
+
+        /**
+         * @return the distinct resources bound to var
+         */
+        public Set<Resource> resources(Model model, String var, QuerySolutionMap params) {
+            Set<Resource> s = new HashSet<Resource>();
+            ResultSet results = this.select(model, params);
+            try {
+                while( results.hasNext() )
+                    s.add(results.nextSolution().getResource(var));
+            } finally {
+                QueryResultCache.close(results);
+            }
+            return s;
+        }
+    }
+
+    static Map<String, Prepared> prepared = new ConcurrentHashMap<String, Prepared>();
+
+    /**
+     * @return the prepared query for sparql/name.rq, parsing and optimizing it on first use
+     */
+    public static Prepared get(String name) {
+        return prepared.computeIfAbsent(name, QueryRegistry::prepare);
+    }
+
+    /**
+     * @return parameters binding var to value, ready for Prepared.select
+     */
+    public static QuerySolutionMap params(String var, RDFNode value) {
+        QuerySolutionMap params = new QuerySolutionMap();
+        params.add(var, value);
+        return params;
+    }
+
+    static Prepared prepare(String name) {
+        // templates may call meta:descendantOf / meta:inheritsSome / meta:textQuery, which have to be known
+        // before the plan is optimized
+        ReachabilityIndex.register();
+        RestrictionIndex.register();
+        LabelTextIndex.register();
+
+        Query query = QueryFactory.create(readResource(PREFIXES) + readResource(name));
+        Op op = Algebra.optimize(Algebra.compile(query));
+        return new Prepared(name, query, op);
+    }
+
+    static Binding binding(QuerySolutionMap params) {
+        BindingMap b = BindingFactory.create();
+        Iterator<String> vars = params.varNames();
+        while( vars.hasNext() ) {
+            String v = vars.next();
+            Node n = params.get(v).asNode();
+            b.add(Var.alloc(v), n);
+        }
+        return b;
+    }
+
+    static String readResource(String name) {
+        String resource = RESOURCE_DIR + name + ".rq";
+        try (InputStream in = QueryRegistry.class.getClassLoader().getResourceAsStream(resource)) {
+            if( in == null )
+                throw new IllegalArgumentException("No query template " + resource + " on the classpath");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while( (n = in.read(buf)) > 0 )
+                out.write(buf, 0, n);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.thrift.Binding2Thrift;
+import org.apache.jena.riot.thrift.Thift2Binding;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ResultSetStream;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * SELECT results kept on disk, next to the parsed snapshots, as binary (Thrift) result sets.
+ *
+ * An entry is keyed by the content fingerprint of the model the query ran over (see
+ * OntologyLoader.fingerprint) and by the normalized query: its algebra, which does not depend on prefixes,
+ * layout or comments. A new release of the source file, or a different literal projection, gives a new
+ * fingerprint, so stale entries are never read; they simply age out of the DiskCache, which also bounds
+ * the total size (least recently used entries go first).
+ *
+ * When the fingerprint is known before the model is loaded (OntologyLoader.mondoFingerprint), a hit
+ * costs a single file read and the model is not loaded at all.
+ *
+ * Results are never held in memory: a hit streams its rows from the entry, and on a miss the rows of the
+ * query are copied into a new entry as the caller consumes them. Both come as a CachedResultSet, which
+ * releases the entry when its rows run out; a consumer that stops early closes it (TsvResultSink does).
+ */
+public class QueryResultCache {
+
+    public interface Execution {
+        ResultSet run() throws IOException;
+    }
+
+    DiskCache cache;
+
+    public QueryResultCache(DiskCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return a cache over the snapshot cache directory, or null when OntologyLoader has none
+     */
+    public static QueryResultCache shared() {
+        DiskCache cache = OntologyLoader.snapshotCache;
+        return cache == null ? null : new QueryResultCache(cache);
+    }
+
+    public static String normalize(Query query) {
+        return Algebra.compile(query).toString();
+    }
+
+    public static String key(String fingerprint, Query query) {
+        return key(fingerprint, normalize(query));
+    }
+
+    public static String key(String fingerprint, String normalizedQuery) {
+        return "rs-" + DiskCache.sha256(fingerprint + "\n" + normalizedQuery) + ".srt";
+    }
+
+    /**
+     * Rows read from, or copied to, a cache entry as they are consumed.
+     */
+    public static class CachedResultSet implements ResultSet, Closeable {
+
+        interface Release {
+            void release(boolean complete) throws IOException;
+        }
+
+        ResultSet rows;
+        Release release;
+
+        CachedResultSet(List<String> vars, Model model, Iterator<Binding> bindings, Release release) {
+            this.rows = new ResultSetStream(vars, model, new QueryIterPlainWrapper(bindings));
+            this.release = release;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if( this.release == null )
+                return false;
+            boolean more;
+            try {
+                more = this.rows.hasNext();
+            } catch (RuntimeException e) {
+                this.close();
+                throw e;
+            }
+            if( !more )
+                this.release(true);
+            return more;
+        }
+
+        @Override
+        public QuerySolution next() {
+            return this.rows.next();
+        }
+
+        @Override
+        public QuerySolution nextSolution() {
+            return this.rows.nextSolution();
+        }
+
+        @Override
+        public Binding nextBinding() {
+            return this.rows.nextBinding();
+        }
+
+        @Override
+        public int getRowNumber() {
+            return this.rows.getRowNumber();
+        }
+
+        @Override
+        public List<String> getResultVars() {
+            return this.rows.getResultVars();
+        }
+
+        @Override
+        public Model getResourceModel() {
+            return this.rows.getResourceModel();
+        }
+
+        /**
+         * Gives up the remaining rows; an entry that was being written is discarded.
+         */
+        @Override
+        public void close() {
+            if( this.release != null )
+                this.release(false);
+        }
+
+        private void release(boolean complete) {
+            Release release = this.release;
+            this.release = null;
+            try {
+                release.release(complete);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Closes results if they hold a cache entry.
+     */
+    public static void close(ResultSet results) {
+        if( results instanceof CachedResultSet )
+            ((CachedResultSet) results).close();
+    }
+
+    /**
+     * @return results as a CachedResultSet that closes execution, the query execution or iterator behind
+     * them, once their rows run out or they are closed
+     */
+    public static CachedResultSet closing(ResultSet results, Closeable execution) {
+        Iterator<Binding> bindings = new Iterator<Binding>() {
+            @Override
+            public boolean hasNext() {
+                return results.hasNext();
+            }
+
+            @Override
+            public Binding next() {
+                return results.nextBinding();
+            }
+        };
+        return new CachedResultSet(results.getResultVars(), results.getResourceModel(), bindings,
+                complete -> execution.close());
+    }
+
+    /**
+     * @return the cached results for key, streamed from the entry, or null on a miss
+     */
+    public CachedResultSet lookup(String key) throws IOException {
+        File entry = this.cache.get(key);
+        if( entry == null )
+            return null;
+        InputStream in = new BufferedInputStream(new FileInputStream(entry), 1 << 16);
+        Thift2Binding bindings;
+        try {
+            bindings = new Thift2Binding(in);
+        } catch (RuntimeException e) {
+            in.close();
+            throw e;
+        }
+        return new CachedResultSet(bindings.getVarNames(), null, bindings, complete -> in.close());
+    }
+
+    /**
+     * @return the cached results for key, or the results of execution, which are stored in the cache as
+     * they are consumed; results that hold an execution (see closing) are closed with the returned set
+     */
+    public CachedResultSet select(String key, Execution execution) throws IOException {
+        CachedResultSet cached = this.lookup(key);
+        if( cached != null )
+            return cached;
+
+        long startTime = System.currentTimeMillis();
+        ResultSet results = execution.run();
+        DiskCache.Pending pending;
+        try {
+            pending = this.cache.begin(key);
+        } catch (IOException | RuntimeException e) {
+            close(results);
+            throw e;
+        }
+        Binding2Thrift out;
+        try {
+            out = new Binding2Thrift(pending.getOut(), Var.varList(results.getResultVars()), false);
+        } catch (RuntimeException e) {
+            pending.close();
+            close(results);
+            throw e;
+        }
+        Iterator<Binding> copied = new Iterator<Binding>() {
+            @Override
+            public boolean hasNext() {
+                return results.hasNext();
+            }
+
+            @Override
+            public Binding next() {
+                Binding b = results.nextBinding();
+                out.output(b);
+                return b;
+            }
+        };
+        return new CachedResultSet(results.getResultVars(), results.getResourceModel(), copied, complete -> {
+            close(results);
+            if( !complete ) {
+                pending.close();
+                return;
+            }
+            out.close();
+            File entry = pending.commit();
+            System.err.println("Cached query results " + key + " (" + entry.length() + " bytes) in " +
+                    (System.currentTimeMillis() - startTime) + " ms");
+        });
+    }
+}
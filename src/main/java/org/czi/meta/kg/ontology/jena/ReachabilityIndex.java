@@ -0,0 +1,351 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.apache.jena.sparql.pfunction.PFuncSimple;
+import org.apache.jena.sparql.pfunction.PropertyFunctionRegistry;
+import org.apache.jena.sparql.util.IterLib;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Precomputed answer to "is d an rdfs:subClassOf+ descendant of a" over the MONDO class DAG.
+ *
+ * Each class carries two labels from one depth-first walk down the hierarchy:
+ *  - its spanning tree interval [pre, post]. If a's tree interval contains d's, d is a descendant of a
+ *    (positive cut).
+ *  - the interval [low, post], where low is the smallest post number among all its descendants. If a's
+ *    interval does not contain d's, d cannot be a descendant of a (negative cut).
+ * Only pairs that fall through both cuts, which come from multiple inheritance, need a walk down from a,
+ * and that walk skips every child whose interval cannot contain d.
+ *
+ * SPARQL queries can use it through the property function meta:descendantOf (PREFIX meta:
+ * &lt;http://meta.org/fn#&gt;) in place of rdfs:subClassOf+ between named classes. When the graph was loaded
+ * through the snapshot cache, the index is saved next to the snapshot and only rebuilt when the source
+ * file changes.
+ */
+public class ReachabilityIndex {
+
+    public static String FN_URI = "http://meta.org/fn#";
+    public static String DESCENDANT_OF = FN_URI + "descendantOf";
+
+    static final int MAGIC = 0x4d524958;   // "MRIX"
+    static final int VERSION = 1;
+
+    static GraphAttachments<ReachabilityIndex> attached = new GraphAttachments<ReachabilityIndex>();
+
+    static {
+        PropertyFunctionRegistry.get().put(DESCENDANT_OF, DescendantOf.class);
+    }
+
+    HierarchyIndex hierarchy;
+    int[] pre;
+    int[] post;
+    int[] low;
+    boolean cyclic;
+
+    ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    class Scratch {
+        int[] stack = new int[hierarchy.size()];
+        int[] mark = new int[hierarchy.size()];
+        int epoch = 0;
+        HierarchyIndex.Traversal traversal = hierarchy.newTraversal();
+
+        int next() {
+            if( ++this.epoch == Integer.MAX_VALUE ) {
+                Arrays.fill(this.mark, 0);
+                this.epoch = 1;
+            }
+            return this.epoch;
+        }
+    }
+
+    ReachabilityIndex(HierarchyIndex hierarchy, int[] pre, int[] post, int[] low, boolean cyclic) {
+        this.hierarchy = hierarchy;
+        this.pre = pre;
+        this.post = post;
+        this.low = low;
+        this.cyclic = cyclic;
+    }
+
+    /**
+     * Makes sure meta:descendantOf is registered with ARQ. Call before running queries that use it.
+     */
+    public static void register() {
+    }
+
+    public static ReachabilityIndex of(Model model) throws IOException {
+        return of(model.getGraph());
+    }
+
+    /**
+     * @return the index attached to graph, building (or reading the saved copy of) it on first use
+     */
+    public static ReachabilityIndex of(Graph graph) throws IOException {
+        return attached.get(graph, ReachabilityIndex::load);
+    }
+
+    static ReachabilityIndex load(Graph graph) throws IOException {
+        ReachabilityIndex index;
+        String digest = OntologyLoader.sourceDigest(graph);
+        DiskCache cache = OntologyLoader.snapshotCache;
+        if( digest != null && cache != null ) {
+            String key = "reach-" + digest + ".bin";
+            File saved = cache.get(key);
+            if( saved != null ) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(saved)))) {
+                    index = read(in);
+                }
+            } else {
+                index = build(HierarchyIndex.subClassOf(graph));
+                ReachabilityIndex built = index;
+                cache.put(key, out -> built.write(new DataOutputStream(new BufferedOutputStream(out))));
+            }
+        } else {
+            index = build(HierarchyIndex.subClassOf(graph));
+        }
+        return index;
+    }
+
+    public static ReachabilityIndex build(HierarchyIndex hierarchy) {
+        long startTime = System.currentTimeMillis();
+        int n = hierarchy.size();
+        int[] pre = new int[n];
+        int[] post = new int[n];
+        int[] low = new int[n];
+        Arrays.fill(pre, -1);
+        boolean[] onStack = new boolean[n];
+        boolean cyclic = false;
+
+        // iterative DFS down the child lists; cursor[] holds the next child to look at for each open node
+        int[] stack = new int[n];
+        int[] cursor = new int[n];
+        int preCount = 0;
+        int postCount = 0;
+        for( int pass = 0; pass < 2; pass++ ) {
+            for( int root = 0; root < n; root++ ) {
+                // roots first; a second pass picks up anything only reachable through a cycle
+                if( pre[root] >= 0 || (pass == 0 && !hierarchy.isRoot(root)) )
+                    continue;
+                int top = 0;
+                stack[top] = root;
+                cursor[root] = hierarchy.childOffsets[root];
+                pre[root] = preCount++;
+                low[root] = Integer.MAX_VALUE;
+                onStack[root] = true;
+                while( top >= 0 ) {
+                    int v = stack[top];
+                    if( cursor[v] < hierarchy.childOffsets[v + 1] ) {
+                        int c = hierarchy.childTargets[cursor[v]++];
+                        if( pre[c] < 0 ) {
+                            pre[c] = preCount++;
+                            low[c] = Integer.MAX_VALUE;
+                            onStack[c] = true;
+                            cursor[c] = hierarchy.childOffsets[c];
+                            stack[++top] = c;
+                        } else if( onStack[c] ) {
+                            cyclic = true;
+                        } else {
+                            low[v] = Math.min(low[v], low[c]);
+                        }
+                    } else {
+                        post[v] = postCount++;
+                        low[v] = Math.min(low[v], post[v]);
+                        onStack[v] = false;
+                        top--;
+                        if( top >= 0 )
+                            low[stack[top]] = Math.min(low[stack[top]], low[v]);
+                    }
+                }
+            }
+        }
+
+        System.err.println("Labelled " + n + " classes for reachability in " +
+                (System.currentTimeMillis() - startTime) + " ms" + (cyclic ? " (cycles found, negative cut disabled)" : ""));
+        return new ReachabilityIndex(hierarchy, pre, post, low, cyclic);
+    }
+
+    public HierarchyIndex getHierarchy() {
+        return this.hierarchy;
+    }
+
+    public boolean isDescendant(String d, String a) {
+        int di = this.hierarchy.id(d);
+        int ai = this.hierarchy.id(a);
+        return di >= 0 && ai >= 0 && this.isDescendant(di, ai);
+    }
+
+    /**
+     * @return true if d rdfs:subClassOf+ a
+     */
+    public boolean isDescendant(int d, int a) {
+        if( d == a )
+            return this.cyclic && this.search(d, a);
+        if( this.pre[a] < this.pre[d] && this.post[d] < this.post[a] )
+            return true;
+        if( !this.cyclic && !this.mayReach(a, d) )
+            return false;
+        return this.search(d, a);
+    }
+
+    private boolean mayReach(int a, int d) {
+        return this.low[a] <= this.low[d] && this.post[d] <= this.post[a];
+    }
+
+    //
+    // Walk down from a, skipping children that cannot lead to d.
+    //
+    private boolean search(int d, int a) {
+        Scratch s = this.scratch.get();
+        int epoch = s.next();
+        int top = 0;
+        s.stack[top++] = a;
+        s.mark[a] = epoch;
+        while( top > 0 ) {
+            int v = s.stack[--top];
+            for( int k = this.hierarchy.childOffsets[v]; k < this.hierarchy.childOffsets[v + 1]; k++ ) {
+                int c = this.hierarchy.childTargets[k];
+                if( c == d )
+                    return true;
+                if( s.mark[c] == epoch )
+                    continue;
+                s.mark[c] = epoch;
+                if( this.pre[c] < this.pre[d] && this.post[d] < this.post[c] )
+                    return true;
+                if( this.cyclic || this.mayReach(c, d) )
+                    s.stack[top++] = c;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return ids of every strict descendant of a, in ascending id order
+     */
+    public int[] descendants(int a) {
+        HierarchyIndex.Traversal t = this.scratch.get().traversal;
+        int count = t.descendants(a);
+        int[] out = new int[count];
+        for( int i = 0; i < count; i++ )
+            out[i] = t.result(i);
+        Arrays.sort(out);
+        return out;
+    }
+
+    /**
+     * @return ids of every strict ancestor of d, in ascending id order
+     */
+    public int[] ancestors(int d) {
+        HierarchyIndex.Traversal t = this.scratch.get().traversal;
+        int count = t.ancestors(d);
+        int[] out = new int[count];
+        for( int i = 0; i < count; i++ )
+            out[i] = t.result(i);
+        Arrays.sort(out);
+        return out;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        HierarchyIndex h = this.hierarchy;
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(h.size());
+        out.writeInt(h.edgeCount());
+        out.writeBoolean(this.cyclic);
+        for( String iri : h.iris )
+            out.writeUTF(iri);
+        writeInts(out, h.parentOffsets);
+        writeInts(out, h.parentTargets);
+        writeInts(out, h.childOffsets);
+        writeInts(out, h.childTargets);
+        writeInts(out, this.pre);
+        writeInts(out, this.post);
+        writeInts(out, this.low);
+        out.flush();
+    }
+
+    static ReachabilityIndex read(DataInputStream in) throws IOException {
+        if( in.readInt() != MAGIC || in.readInt() != VERSION )
+            throw new IOException("Not a reachability index (or an older version)");
+        int n = in.readInt();
+        int e = in.readInt();
+        boolean cyclic = in.readBoolean();
+        String[] iris = new String[n];
+        for( int i = 0; i < n; i++ )
+            iris[i] = in.readUTF();
+        int[] parentOffsets = readInts(in, n + 1);
+        int[] parentTargets = readInts(in, e);
+        int[] childOffsets = readInts(in, n + 1);
+        int[] childTargets = readInts(in, e);
+        HierarchyIndex h = new HierarchyIndex(iris, parentOffsets, parentTargets, childOffsets, childTargets);
+        return new ReachabilityIndex(h, readInts(in, n), readInts(in, n), readInts(in, n), cyclic);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] a) throws IOException {
+        for( int v : a )
+            out.writeInt(v);
+    }
+
+    private static int[] readInts(DataInputStream in, int length) throws IOException {
+        int[] a = new int[length];
+        for( int i = 0; i < length; i++ )
+            a[i] = in.readInt();
+        return a;
+    }
+
+    /**
+     * ?d meta:descendantOf ?a, true when ?d rdfs:subClassOf+ ?a. Either side may be unbound.
+     */
+    public static class DescendantOf extends PFuncSimple {
+
+        @Override
+        public QueryIterator execEvaluated(Binding binding, Node subject, Node predicate, Node object,
+                                           ExecutionContext execCxt) {
+            ReachabilityIndex index;
+            try {
+                index = ReachabilityIndex.of(execCxt.getActiveGraph());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            HierarchyIndex h = index.hierarchy;
+
+            if( subject.isURI() && object.isURI() ) {
+                if( index.isDescendant(subject.getURI(), object.getURI()) )
+                    return IterLib.result(binding, execCxt);
+                return IterLib.noResults(execCxt);
+            }
+
+            List<Binding> out = new ArrayList<Binding>();
+            if( object.isURI() && subject.isVariable() ) {
+                int a = h.id(object.getURI());
+                if( a >= 0 )
+                    for( int d : index.descendants(a) )
+                        out.add(BindingFactory.binding(binding, Var.alloc(subject), NodeFactory.createURI(h.iri(d))));
+            } else if( subject.isURI() && object.isVariable() ) {
+                int d = h.id(subject.getURI());
+                if( d >= 0 )
+                    for( int a : index.ancestors(d) )
+                        out.add(BindingFactory.binding(binding, Var.alloc(object), NodeFactory.createURI(h.iri(a))));
+            } else if( subject.isVariable() && object.isVariable() ) {
+                for( int d = 0; d < h.size(); d++ ) {
+                    Node dNode = NodeFactory.createURI(h.iri(d));
+                    for( int a : index.ancestors(d) ) {
+                        Binding b = BindingFactory.binding(binding, Var.alloc(subject), dNode);
+                        out.add(BindingFactory.binding(b, Var.alloc(object), NodeFactory.createURI(h.iri(a))));
+                    }
+                }
+            }
+            return new QueryIterPlainWrapper(out.iterator(), execCxt);
+        }
+    }
+}
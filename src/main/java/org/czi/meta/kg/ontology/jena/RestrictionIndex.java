@@ -0,0 +1,322 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.apache.jena.sparql.pfunction.PropFuncArg;
+import org.apache.jena.sparql.pfunction.PFuncSimpleAndList;
+import org.apache.jena.sparql.pfunction.PropertyFunctionRegistry;
+import org.apache.jena.sparql.util.IterLib;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.vocabulary.OWL;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Existential restrictions (rdfs:subClassOf [ owl:onProperty P ; owl:someValuesFrom F ]) of every class,
+ * asserted or inherited.
+ *
+ * Restriction superclasses are decoded once into (class, property, filler) tuples, with each distinct
+ * (property, filler) pair numbered. The pairs are then pushed down the hierarchy in topological order:
+ * a class holds the sorted union of its own pairs and those of its parents. Asking whether a class
+ * inherits "P some F" is a binary search, and the set of all classes that do is built once per pair and
+ * kept.
+ *
+ * Only named properties and named fillers are indexed. SPARQL queries can use the index through the
+ * property function meta:inheritsSome with a (property filler) list, in place of
+ *     ?d rdfs:subClassOf+ ?t . ?t a owl:Restriction ; owl:onProperty P ; owl:someValuesFrom F
+ * as  ?d meta:inheritsSome (P F)
+ */
+public class RestrictionIndex {
+
+    public static String INHERITS_SOME = ReachabilityIndex.FN_URI + "inheritsSome";
+
+    static GraphAttachments<RestrictionIndex> attached = new GraphAttachments<RestrictionIndex>();
+
+    static {
+        PropertyFunctionRegistry.get().put(INHERITS_SOME, InheritsSome.class);
+    }
+
+    HierarchyIndex hierarchy;
+    Node[] properties;     // pair -> property
+    Node[] fillers;        // pair -> filler
+    Map<Node, Map<Node, Integer>> pairs;
+    int[] offsets;         // class -> range of pairs, asserted and inherited, sorted
+    int[] classPairs;
+    BitSet asserted;       // bit (offset of a pair in classPairs) set when the class asserts it itself
+    Map<Integer, BitSet> classes = new ConcurrentHashMap<Integer, BitSet>();
+
+    RestrictionIndex(HierarchyIndex hierarchy, Node[] properties, Node[] fillers, Map<Node, Map<Node, Integer>> pairs,
+                     int[] offsets, int[] classPairs, BitSet asserted) {
+        this.hierarchy = hierarchy;
+        this.properties = properties;
+        this.fillers = fillers;
+        this.pairs = pairs;
+        this.offsets = offsets;
+        this.classPairs = classPairs;
+        this.asserted = asserted;
+    }
+
+    /**
+     * Makes sure meta:inheritsSome is registered with ARQ. Call before running queries that use it.
+     */
+    public static void register() {
+    }
+
+    public static RestrictionIndex of(Model model) throws IOException {
+        return of(model.getGraph());
+    }
+
+    /**
+     * @return the index attached to graph, building it on first use
+     */
+    public static RestrictionIndex of(Graph graph) throws IOException {
+        return attached.get(graph, g -> build(g, ReachabilityIndex.of(g).getHierarchy()));
+    }
+
+    public static RestrictionIndex build(Graph graph, HierarchyIndex h) {
+        long startTime = System.currentTimeMillis();
+        int n = h.size();
+
+        // decode every named class rdfs:subClassOf a someValuesFrom restriction
+        List<Node> properties = new ArrayList<Node>();
+        List<Node> fillers = new ArrayList<Node>();
+        Map<Node, Map<Node, Integer>> pairs = new HashMap<Node, Map<Node, Integer>>();
+        int[][] direct = new int[n][];
+        int tuples = 0;
+        ExtendedIterator<Triple> it = graph.find(Node.ANY, OWL.someValuesFrom.asNode(), Node.ANY);
+        while( it.hasNext() ) {
+            Triple t = it.next();
+            Node r = t.getSubject();
+            Node filler = t.getObject();
+            if( !filler.isURI() || !graph.contains(r, RDF.Nodes.type, OWL.Restriction.asNode()) )
+                continue;
+            ExtendedIterator<Triple> onProperty = graph.find(r, OWL.onProperty.asNode(), Node.ANY);
+            while( onProperty.hasNext() ) {
+                Node property = onProperty.next().getObject();
+                if( !property.isURI() )
+                    continue;
+                Map<Node, Integer> byFiller = pairs.computeIfAbsent(property, k -> new HashMap<Node, Integer>());
+                Integer pair = byFiller.get(filler);
+                if( pair == null ) {
+                    pair = properties.size();
+                    byFiller.put(filler, pair);
+                    properties.add(property);
+                    fillers.add(filler);
+                }
+                ExtendedIterator<Triple> subs = graph.find(Node.ANY, RDFS.Nodes.subClassOf, r);
+                while( subs.hasNext() ) {
+                    Node s = subs.next().getSubject();
+                    int c = s.isURI() ? h.id(s.getURI()) : -1;
+                    if( c < 0 )
+                        continue;
+                    direct[c] = direct[c] == null ? new int[] { pair } : append(direct[c], pair);
+                    tuples++;
+                }
+            }
+        }
+
+        // push the pairs down, parents first; a cycle puts some parents after their child, in which case the
+        // pass is repeated until nothing changes
+        int[][] inherited = new int[n][];
+        int[] order = h.topologicalOrder();
+        for( int v = 0; v < n; v++ )
+            inherited[v] = direct[v] == null ? new int[0] : sortedUnique(direct[v]);
+        boolean changed = true;
+        while( changed ) {
+            changed = false;
+            for( int v : order ) {
+                int[] all = inherited[v];
+                for( int k = 0; k < h.parentCount(v); k++ ) {
+                    int[] p = inherited[h.parent(v, k)];
+                    if( p.length > 0 )
+                        all = union(all, p);
+                }
+                if( all.length != inherited[v].length ) {
+                    inherited[v] = all;
+                    changed = true;
+                }
+            }
+        }
+
+        int[] offsets = new int[n + 1];
+        for( int v = 0; v < n; v++ )
+            offsets[v + 1] = offsets[v] + inherited[v].length;
+        int[] classPairs = new int[offsets[n]];
+        BitSet asserted = new BitSet(offsets[n]);
+        for( int v = 0; v < n; v++ ) {
+            System.arraycopy(inherited[v], 0, classPairs, offsets[v], inherited[v].length);
+            if( direct[v] != null )
+                for( int pair : direct[v] )
+                    asserted.set(offsets[v] + Arrays.binarySearch(inherited[v], pair));
+        }
+
+        System.err.println("Indexed " + tuples + " existential restrictions over " + properties.size() +
+                " (property, filler) pairs, " + offsets[n] + " inherited, in " +
+                (System.currentTimeMillis() - startTime) + " ms");
+        return new RestrictionIndex(h, properties.toArray(new Node[0]), fillers.toArray(new Node[0]), pairs,
+                offsets, classPairs, asserted);
+    }
+
+    private static int[] append(int[] a, int x) {
+        int[] b = Arrays.copyOf(a, a.length + 1);
+        b[a.length] = x;
+        return b;
+    }
+
+    private static int[] sortedUnique(int[] a) {
+        int[] s = a.clone();
+        Arrays.sort(s);
+        int k = 0;
+        for( int i = 0; i < s.length; i++ )
+            if( k == 0 || s[k - 1] != s[i] )
+                s[k++] = s[i];
+        return k == s.length ? s : Arrays.copyOf(s, k);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int[] out = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while( i < a.length || j < b.length ) {
+            int x;
+            if( j == b.length || (i < a.length && a[i] < b[j]) )
+                x = a[i++];
+            else if( i == a.length || b[j] < a[i] )
+                x = b[j++];
+            else {
+                x = a[i++];
+                j++;
+            }
+            out[k++] = x;
+        }
+        return k == out.length ? out : Arrays.copyOf(out, k);
+    }
+
+    public HierarchyIndex getHierarchy() {
+        return this.hierarchy;
+    }
+
+    public int pairCount() {
+        return this.properties.length;
+    }
+
+    public Node property(int pair) {
+        return this.properties[pair];
+    }
+
+    public Node filler(int pair) {
+        return this.fillers[pair];
+    }
+
+    /**
+     * @return the pair id of (property, filler), or -1 if no class asserts it
+     */
+    public int pair(Node property, Node filler) {
+        Map<Node, Integer> byFiller = this.pairs.get(property);
+        if( byFiller == null )
+            return -1;
+        Integer pair = byFiller.get(filler);
+        return pair == null ? -1 : pair;
+    }
+
+    public int pair(String propertyIri, String fillerIri) {
+        return this.pair(NodeFactory.createURI(propertyIri), NodeFactory.createURI(fillerIri));
+    }
+
+    /**
+     * @return the pairs cls asserts or inherits, sorted by pair id
+     */
+    public int[] restrictions(int cls) {
+        return Arrays.copyOfRange(this.classPairs, this.offsets[cls], this.offsets[cls + 1]);
+    }
+
+    public boolean inherits(int cls, int pair) {
+        return this.indexOf(cls, pair) >= 0;
+    }
+
+    /**
+     * @return true if cls itself is rdfs:subClassOf the restriction, rather than only through an ancestor
+     */
+    public boolean asserts(int cls, int pair) {
+        int i = this.indexOf(cls, pair);
+        return i >= 0 && this.asserted.get(i);
+    }
+
+    private int indexOf(int cls, int pair) {
+        int i = Arrays.binarySearch(this.classPairs, this.offsets[cls], this.offsets[cls + 1], pair);
+        return i >= 0 ? i : -1;
+    }
+
+    /**
+     * @return every class that asserts or inherits pair (do not modify)
+     */
+    public BitSet classesWith(int pair) {
+        return this.classes.computeIfAbsent(pair, p -> {
+            BitSet s = new BitSet(this.hierarchy.size());
+            if( p < 0 )
+                return s;
+            for( int v = 0; v < this.hierarchy.size(); v++ )
+                if( this.inherits(v, p) )
+                    s.set(v);
+            return s;
+        });
+    }
+
+    public BitSet classesWith(String propertyIri, String fillerIri) {
+        return this.classesWith(this.pair(propertyIri, fillerIri));
+    }
+
+    /**
+     * ?d meta:inheritsSome (P F): d is a named class that is rdfs:subClassOf (P some F), itself or through
+     * one of its ancestors. P and F must be bound.
+     */
+    public static class InheritsSome extends PFuncSimpleAndList {
+
+        @Override
+        public QueryIterator execEvaluated(Binding binding, Node subject, Node predicate, PropFuncArg object,
+                                           ExecutionContext execCxt) {
+            if( object.getArgListSize() != 2 || !object.getArg(0).isURI() || !object.getArg(1).isURI() )
+                return IterLib.noResults(execCxt);
+            RestrictionIndex index;
+            try {
+                index = RestrictionIndex.of(execCxt.getActiveGraph());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            HierarchyIndex h = index.hierarchy;
+            int pair = index.pair(object.getArg(0), object.getArg(1));
+            if( pair < 0 )
+                return IterLib.noResults(execCxt);
+
+            if( subject.isURI() ) {
+                int d = h.id(subject.getURI());
+                if( d >= 0 && index.inherits(d, pair) )
+                    return IterLib.result(binding, execCxt);
+                return IterLib.noResults(execCxt);
+            }
+            if( !subject.isVariable() )
+                return IterLib.noResults(execCxt);
+
+            List<Binding> out = new ArrayList<Binding>();
+            BitSet s = index.classesWith(pair);
+            for( int d = s.nextSetBit(0); d >= 0; d = s.nextSetBit(d + 1) )
+                out.add(BindingFactory.binding(binding, Var.alloc(subject), NodeFactory.createURI(h.iri(d))));
+            return new QueryIterPlainWrapper(out.iterator(), execCxt);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.czi.meta.kg.ontology.jena;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Information-content similarity between classes of a HierarchyIndex.
+ *
+ * Information content is intrinsic (Seco et al.): IC(c) = 1 - log(desc(c) + 1) / log(N), where desc(c) is
+ * the number of strict descendants of c and N the number of classes, so the root scores 0 and leaves 1.
+ *
+ * Classes are numbered in topological order (parents before children) and every class keeps its
+ * ancestor set, itself included, as a sorted array of those ranks, so memory grows with the number of
+ * ancestor links rather than with the square of the class count. Scores merge two such arrays:
+ *  - Resnik: IC of the most informative common ancestor (MICA)
+ *  - Lin: 2 IC(MICA) / (IC(a) + IC(b))
+ *  - Jaccard: |anc(a) & anc(b)| / |anc(a) | anc(b)|
+ * Everything is precomputed in the constructor and read-only afterwards, so scoring is thread safe.
+ */
+public class SemanticSimilarity {
+
+    public enum Measure { RESNIK, LIN, JACCARD }
+
+    HierarchyIndex hierarchy;
+    int[] rank;        // id -> topological rank
+    int[] byRank;      // rank -> id
+    int[][] ancestors; // id -> ranks of its ancestors and itself, ascending
+    double[] ic;
+
+    public SemanticSimilarity(HierarchyIndex hierarchy) {
+        long startTime = System.currentTimeMillis();
+        this.hierarchy = hierarchy;
+        int n = hierarchy.size();
+
+        this.topologicalOrder();
+
+        this.ancestors = new int[n][];
+        for( int r = 0; r < n; r++ ) {
+            int v = this.byRank[r];
+            int[] ranks = new int[0];
+            for( int k = 0; k < hierarchy.parentCount(v); k++ ) {
+                int[] pr = this.ancestors[hierarchy.parent(v, k)];
+                if( pr == null )
+                    continue;   // parent on a cycle, ranked after v
+                ranks = union(ranks, pr);
+            }
+            // every ancestor ranks below v, so v itself goes last
+            ranks = Arrays.copyOf(ranks, ranks.length + 1);
+            ranks[ranks.length - 1] = r;
+            this.ancestors[v] = ranks;
+        }
+
+        int[] descendants = new int[n];
+        for( int v = 0; v < n; v++ ) {
+            int[] ranks = this.ancestors[v];
+            for( int i = 0; i < ranks.length - 1; i++ )
+                descendants[this.byRank[ranks[i]]]++;
+        }
+
+        this.ic = new double[n];
+        double logN = Math.log(Math.max(n, 2));
+        for( int v = 0; v < n; v++ )
+            this.ic[v] = 1.0 - Math.log(descendants[v] + 1) / logN;
+
+        System.err.println("Computed information content for " + n + " classes in " +
+                (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * @return the sorted union of two sorted rank arrays
+     */
+    static int[] union(int[] a, int[] b) {
+        if( a.length == 0 )
+            return b;
+        int[] out = new int[a.length + b.length];
+        int i = 0, j = 0, k = 0;
+        while( i < a.length && j < b.length ) {
+            if( a[i] < b[j] )
+                out[k++] = a[i++];
+            else if( a[i] > b[j] )
+                out[k++] = b[j++];
+            else {
+                out[k++] = a[i++];
+                j++;
+            }
+        }
+        while( i < a.length )
+            out[k++] = a[i++];
+        while( j < b.length )
+            out[k++] = b[j++];
+        return k == out.length ? out : Arrays.copyOf(out, k);
+    }
+
+    private void topologicalOrder() {
+        this.byRank = this.hierarchy.topologicalOrder();
+        this.rank = new int[this.byRank.length];
+        for( int r = 0; r < this.byRank.length; r++ )
+            this.rank[this.byRank[r]] = r;
+    }
+
+    public HierarchyIndex getHierarchy() {
+        return this.hierarchy;
+    }
+
+    public double ic(int id) {
+        return this.ic[id];
+    }
+
+    /**
+     * @return the most informative common ancestor of a and b (either may be the other's ancestor), or -1;
+     *  among ancestors of equal IC the one ranked last (the most specific) wins
+     */
+    public int mica(int a, int b) {
+        int[] ra = this.ancestors[a];
+        int[] rb = this.ancestors[b];
+        int best = -1;
+        double bestIc = -1;
+        int i = ra.length - 1;
+        int j = rb.length - 1;
+        while( i >= 0 && j >= 0 ) {
+            if( ra[i] > rb[j] )
+                i--;
+            else if( ra[i] < rb[j] )
+                j--;
+            else {
+                int c = this.byRank[ra[i]];
+                if( this.ic[c] > bestIc ) {
+                    bestIc = this.ic[c];
+                    best = c;
+                }
+                i--;
+                j--;
+            }
+        }
+        return best;
+    }
+
+    public double resnik(int a, int b) {
+        int c = this.mica(a, b);
+        return c < 0 ? 0.0 : this.ic[c];
+    }
+
+    public double lin(int a, int b) {
+        double denominator = this.ic[a] + this.ic[b];
+        if( denominator == 0 )
+            return a == b ? 1.0 : 0.0;
+        return 2 * this.resnik(a, b) / denominator;
+    }
+
+    public double jaccard(int a, int b) {
+        int[] ra = this.ancestors[a];
+        int[] rb = this.ancestors[b];
+        int common = 0;
+        int i = 0;
+        int j = 0;
+        while( i < ra.length && j < rb.length ) {
+            if( ra[i] < rb[j] )
+                i++;
+            else if( ra[i] > rb[j] )
+                j++;
+            else {
+                common++;
+                i++;
+                j++;
+            }
+        }
+        int union = ra.length + rb.length - common;
+        return union == 0 ? 0.0 : (double) common / union;
+    }
+
+    public double score(Measure measure, int a, int b) {
+        switch( measure ) {
+            case RESNIK:
+                return this.resnik(a, b);
+            case LIN:
+                return this.lin(a, b);
+            default:
+                return this.jaccard(a, b);
+        }
+    }
+
+    /**
+     * Scores the pairs (as[i], bs[i]) across threads.
+     */
+    public double[] score(Measure measure, int[] as, int[] bs, int threads) throws InterruptedException {
+        double[] out = new double[as.length];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, as.length).parallel()
+                    .forEach(i -> out[i] = this.score(measure, as[i], bs[i]))).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return out;
+    }
+
+    String format(String a, String b) {
+        int ia = this.hierarchy.resolve(a);
+        int ib = this.hierarchy.resolve(b);
+        if( ia < 0 || ib < 0 )
+            return a + "\t" + b + "\t\t\t\t";
+        int c = this.mica(ia, ib);
+        return a + "\t" + b + "\t" + (c < 0 ? "" : this.hierarchy.iri(c)) + "\t" +
+                (float) this.resnik(ia, ib) + "\t" + (float) this.lin(ia, ib) + "\t" + (float) this.jaccard(ia, ib);
+    }
+
+    /**
+     * Reads (a, b) pairs from the first two columns of pairsFile and writes a, b, mica, resnik, lin,
+     * jaccard to outFile. Unknown classes get empty columns.
+     *
+     * @return number of pairs processed
+     */
+    public long scorePairs(File pairsFile, File outFile, int threads) throws IOException {
+        return PairBatch.run(pairsFile, outFile, "a\tb\tmica\tresnik\tlin\tjaccard", threads, this::format);
+    }
+}
@@ -0,0 +1,212 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.vocabulary.OWL;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Sibling groups of a class hierarchy: for every parent, the member classes directly below it.
+ *
+ * The groups come from one pass over the child lists of a HierarchyIndex, so the cost is linear in the
+ * number of subClassOf edges. Pairs are never materialized; pairs() walks the groups lazily and reports
+ * each unordered pair once, even when the two classes share several parents.
+ */
+public class SiblingSets {
+
+    HierarchyIndex hierarchy;
+    BitSet members;
+
+    // CSR of the groups with at least two members: groupParents[g] and groupChildren[groupOffsets[g] ..]
+    int[] groupParents;
+    int[] groupOffsets;
+    int[] groupChildren;
+
+    public SiblingSets(HierarchyIndex hierarchy, BitSet members) {
+        this.hierarchy = hierarchy;
+        this.members = members;
+
+        int n = hierarchy.size();
+        int[] parents = new int[n];
+        int[] offsets = new int[n + 1];
+        int[] children = new int[hierarchy.edgeCount()];
+        int groups = 0;
+        int used = 0;
+        for( int p = 0; p < n; p++ ) {
+            int start = used;
+            for( int k = 0; k < hierarchy.childCount(p); k++ ) {
+                int c = hierarchy.child(p, k);
+                if( members.get(c) )
+                    children[used++] = c;
+            }
+            if( used - start < 2 ) {
+                used = start;
+                continue;
+            }
+            parents[groups] = p;
+            offsets[groups] = start;
+            groups++;
+            offsets[groups] = used;
+        }
+        this.groupParents = Arrays.copyOf(parents, groups);
+        this.groupOffsets = Arrays.copyOf(offsets, groups + 1);
+        this.groupChildren = Arrays.copyOf(children, used);
+    }
+
+    /**
+     * Sibling groups among the MONDO diseases: labelled owl:Class descendants of rootIri.
+     */
+    public static SiblingSets forMondo(Model mondoModel, String rootIri) throws IOException {
+        ReachabilityIndex reach = ReachabilityIndex.of(mondoModel);
+        return new SiblingSets(reach.getHierarchy(), labelledClassesBelow(mondoModel, reach, rootIri));
+    }
+
+    /**
+     * @return ids of the owl:Class descendants of rootIri that have an rdfs:label
+     */
+    public static BitSet labelledClassesBelow(Model model, ReachabilityIndex reach, String rootIri) {
+        HierarchyIndex h = reach.getHierarchy();
+        Graph g = model.getGraph();
+        int root = h.id(rootIri);
+        BitSet members = new BitSet(h.size());
+        if( root >= 0 ) {
+            for( int d : reach.descendants(root) ) {
+                Node dNode = NodeFactory.createURI(h.iri(d));
+                if( g.contains(dNode, RDF.Nodes.type, OWL.Class.asNode()) && g.contains(dNode, RDFS.Nodes.label, Node.ANY) )
+                    members.set(d);
+            }
+        }
+        return members;
+    }
+
+    public int groupCount() {
+        return this.groupParents.length;
+    }
+
+    public int parent(int group) {
+        return this.groupParents[group];
+    }
+
+    public int size(int group) {
+        return this.groupOffsets[group + 1] - this.groupOffsets[group];
+    }
+
+    public int child(int group, int i) {
+        return this.groupChildren[this.groupOffsets[group] + i];
+    }
+
+    public long pairCount() {
+        long count = 0;
+        Iterator<int[]> it = this.pairs();
+        while( it.hasNext() ) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Lazily enumerates sibling pairs {a, b} (a &lt; b in id order). A pair sharing several parents is
+     * reported under the first of them only. The returned array is reused between calls.
+     */
+    public Iterator<int[]> pairs() {
+        return new Iterator<int[]>() {
+            int group = 0;
+            int i = 0;
+            int j = 0;
+            int[] pair = new int[2];
+            boolean ready = false;
+
+            private void advance() {
+                while( !this.ready && this.group < groupCount() ) {
+                    int size = size(this.group);
+                    if( ++this.j >= size ) {
+                        this.i++;
+                        this.j = this.i + 1;
+                        if( this.j >= size ) {
+                            this.group++;
+                            this.i = 0;
+                            this.j = 0;
+                            continue;
+                        }
+                    }
+                    int a = child(this.group, this.i);
+                    int b = child(this.group, this.j);
+                    if( firstSharedParent(a, b) == parent(this.group) ) {
+                        this.pair[0] = Math.min(a, b);
+                        this.pair[1] = Math.max(a, b);
+                        this.ready = true;
+                    }
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                this.advance();
+                return this.ready;
+            }
+
+            @Override
+            public int[] next() {
+                this.advance();
+                if( !this.ready )
+                    throw new NoSuchElementException();
+                this.ready = false;
+                return this.pair;
+            }
+        };
+    }
+
+    //
+    // Parent lists in the index are sorted, so the smallest shared parent falls out of a merge.
+    //
+    private int firstSharedParent(int a, int b) {
+        int i = 0;
+        int j = 0;
+        while( i < this.hierarchy.parentCount(a) && j < this.hierarchy.parentCount(b) ) {
+            int x = this.hierarchy.parent(a, i);
+            int y = this.hierarchy.parent(b, j);
+            if( x == y )
+                return x;
+            if( x < y )
+                i++;
+            else
+                j++;
+        }
+        return -1;
+    }
+
+    /**
+     * One line per group: the parent IRI followed by the IRIs of its member children, tab separated.
+     */
+    public void writeSets(Writer w) throws IOException {
+        for( int g = 0; g < this.groupCount(); g++ ) {
+            w.write(this.hierarchy.iri(this.parent(g)));
+            for( int i = 0; i < this.size(g); i++ ) {
+                w.write('\t');
+                w.write(this.hierarchy.iri(this.child(g, i)));
+            }
+            w.write('\n');
+        }
+        w.flush();
+    }
+
+    public void writePairs(Writer w) throws IOException {
+        Iterator<int[]> it = this.pairs();
+        while( it.hasNext() ) {
+            int[] pair = it.next();
+            w.write(this.hierarchy.iri(pair[0]));
+            w.write('\t');
+            w.write(this.hierarchy.iri(pair[1]));
+            w.write('\n');
+        }
+        w.flush();
+    }
+}
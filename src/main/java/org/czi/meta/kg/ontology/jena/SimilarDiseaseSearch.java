@@ -0,0 +1,286 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.rdf.model.Model;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Top-k most similar diseases (Lin similarity) to a query disease, without scoring every candidate.
+ *
+ * The ancestors of the query are visited in order of decreasing information content. The first visited
+ * ancestor that a candidate descends from is the most informative common ancestor of the pair, so each
+ * candidate is scored exactly once, when it is first reached below an ancestor a:
+ *     lin(q, c) = 2 IC(a) / (IC(q) + IC(c))
+ * Every candidate still unscored below a later ancestor a' has IC(c) >= IC(a'), so its score is at most
+ * 2 IC(a') / (IC(q) + IC(a')), which only decreases as the walk goes up. The search stops as soon as that
+ * bound can no longer beat the current k-th best score, which for specific diseases is usually after a
+ * few levels.
+ */
+public class SimilarDiseaseSearch {
+
+    public static String OBO_URI = "http://purl.obolibrary.org/obo/";
+
+    public static final class Hit {
+        public final int id;
+        public final double score;
+        public final int mica;
+
+        Hit(int id, double score, int mica) {
+            this.id = id;
+            this.score = score;
+            this.mica = mica;
+        }
+    }
+
+    SemanticSimilarity similarity;
+    HierarchyIndex hierarchy;
+    BitSet candidates;
+    ThreadLocal<Scratch> scratch;
+
+    class Scratch {
+        int[] mark = new int[hierarchy.size()];
+        int epoch = 0;
+        HierarchyIndex.Traversal up = hierarchy.newTraversal();
+        HierarchyIndex.Traversal down = hierarchy.newTraversal();
+
+        int next() {
+            if( ++this.epoch == Integer.MAX_VALUE ) {
+                Arrays.fill(this.mark, 0);
+                this.epoch = 1;
+            }
+            return this.epoch;
+        }
+    }
+
+    /**
+     * @param candidates classes that may be returned, or null for every class in the hierarchy
+     */
+    public SimilarDiseaseSearch(SemanticSimilarity similarity, BitSet candidates) {
+        this.similarity = similarity;
+        this.hierarchy = similarity.getHierarchy();
+        this.candidates = candidates;
+        this.scratch = ThreadLocal.withInitial(Scratch::new);
+    }
+
+    /**
+     * Searches among the labelled MONDO diseases (owl:Class descendants of MONDO_0000001).
+     */
+    public static SimilarDiseaseSearch forMondo(Model mondoModel) throws IOException {
+        ReachabilityIndex reach = ReachabilityIndex.of(mondoModel);
+        BitSet diseases = SiblingSets.labelledClassesBelow(mondoModel, reach, OBO_URI + "MONDO_0000001");
+        return new SimilarDiseaseSearch(new SemanticSimilarity(reach.getHierarchy()), diseases);
+    }
+
+    /**
+     * @return up to k hits, best first; ties are broken by lower id
+     */
+    public List<Hit> topK(int query, int k) {
+        Scratch s = this.scratch.get();
+        int epoch = s.next();
+        double icQ = this.similarity.ic(query);
+
+        // ancestors of the query, itself included, most informative first
+        int count = s.up.ancestors(query);
+        Integer[] order = new Integer[count + 1];
+        order[0] = query;
+        for( int i = 0; i < count; i++ )
+            order[i + 1] = s.up.result(i);
+        Arrays.sort(order, 1, order.length, (x, y) -> {
+            int c = Double.compare(this.similarity.ic(y), this.similarity.ic(x));
+            return c != 0 ? c : Integer.compare(x, y);
+        });
+
+        PriorityQueue<Hit> heap = new PriorityQueue<Hit>(k + 1, (x, y) -> {
+            int c = Double.compare(x.score, y.score);
+            return c != 0 ? c : Integer.compare(y.id, x.id);
+        });
+        s.mark[query] = epoch;
+
+        for( int a : order ) {
+            double icA = this.similarity.ic(a);
+            // a descendant scoring exactly the bound can still displace an equal scoring hit with a higher id
+            if( heap.size() == k && 2 * icA / (icQ + icA) < heap.peek().score )
+                break;
+            this.offer(heap, k, a, a, icQ, icA, s, epoch);
+            int n = s.down.descendants(a, c -> s.mark[c] != epoch);
+            for( int i = 0; i < n; i++ )
+                this.offer(heap, k, s.down.result(i), a, icQ, icA, s, epoch);
+        }
+
+        List<Hit> hits = new ArrayList<Hit>(heap);
+        hits.sort((x, y) -> {
+            int c = Double.compare(y.score, x.score);
+            return c != 0 ? c : Integer.compare(x.id, y.id);
+        });
+        return hits;
+    }
+
+    private void offer(PriorityQueue<Hit> heap, int k, int c, int mica, double icQ, double icA, Scratch s, int epoch) {
+        if( s.mark[c] == epoch )
+            return;
+        s.mark[c] = epoch;
+        if( this.candidates != null && !this.candidates.get(c) )
+            return;
+        double denominator = icQ + this.similarity.ic(c);
+        double score = denominator == 0 ? 0.0 : 2 * icA / denominator;
+        if( heap.size() < k ) {
+            heap.add(new Hit(c, score, mica));
+        } else {
+            Hit worst = heap.peek();
+            if( score > worst.score || (score == worst.score && c < worst.id) ) {
+                heap.poll();
+                heap.add(new Hit(c, score, mica));
+            }
+        }
+    }
+
+    String format(String query, int k) {
+        int q = this.hierarchy.resolve(query);
+        if( q < 0 )
+            return query + "\t\t\t\t\n";
+        StringBuilder sb = new StringBuilder();
+        int rank = 1;
+        for( Hit h : this.topK(q, k) ) {
+            sb.append(query).append('\t').append(rank++).append('\t').append(this.hierarchy.iri(h.id)).append('\t')
+                    .append((float) h.score).append('\t').append(this.hierarchy.iri(h.mica)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Runs the queries (first column of queriesFile) across threads and writes query, rank, disease, lin,
+     * mica lines in input order.
+     */
+    public void searchAll(List<String> queries, int k, File outFile, int threads)
+            throws IOException, InterruptedException {
+        long startTime = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<String> blocks;
+        try {
+            blocks = pool.submit(() -> queries.parallelStream().map(q -> this.format(q, k))
+                    .collect(Collectors.toList())).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        try (BufferedWriter w = new BufferedWriter(new FileWriter(outFile), 1 << 16)) {
+            w.write("query\trank\tdisease\tlin\tmica\n");
+            for( String b : blocks )
+                w.write(b);
+        }
+        System.out.println("Searched " + queries.size() + " diseases (top " + k + ") with " + threads +
+                " threads in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    static List<String> readQueries(File queriesFile) throws IOException {
+        List<String> queries = new ArrayList<String>();
+        try (BufferedReader r = new BufferedReader(new FileReader(queriesFile))) {
+            String line;
+            while( (line = r.readLine()) != null ) {
+                String q = line.split("\t", 2)[0].trim();
+                if( !q.isEmpty() )
+                    queries.add(q);
+            }
+        }
+        return queries;
+    }
+
+    public static class Options {
+
+        @Option(name = "-mondoFile", usage = "MONDO File", required = false, metaVar = "MONDO-FILE")
+        public File mondoFile;
+
+        @Option(name = "-storeDir", usage = "TDB2 Store Directory (instead of -mondoFile)", required = false, metaVar = "STORE-DIR")
+        public File storeDir;
+
+        @Option(name = "-cacheDir", usage = "Parsed Snapshot Cache Directory", required = false, metaVar = "CACHE-DIR")
+        public File cacheDir;
+
+        @Option(name = "-lang", usage = "Keep only MONDO literals in these languages (e.g. en)", required = false, metaVar = "LANGS")
+        public String lang;
+
+        @Option(name = "-query", usage = "Query Disease (IRI or CURIE)", required = false, metaVar = "MONDO-ID")
+        public String query;
+
+        @Option(name = "-queriesFile", usage = "File of Query Diseases, one per line", required = false, metaVar = "QUERIES-FILE")
+        public File queriesFile;
+
+        @Option(name = "-k", usage = "Number of Similar Diseases (default 20)", required = false, metaVar = "K")
+        public int k = 20;
+
+        @Option(name = "-outFile", usage = "Output TSV (with -queriesFile)", required = false, metaVar = "OUT-FILE")
+        public File outFile;
+
+        @Option(name = "-threads", usage = "Worker Threads (default: all cores)", required = false, metaVar = "THREADS")
+        public int threads = Runtime.getRuntime().availableProcessors();
+
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        Options options = new Options();
+
+        CmdLineParser parser = new CmdLineParser(options);
+
+        try {
+
+            parser.parseArgument(args);
+            if( options.mondoFile == null && options.storeDir == null ) {
+                throw new CmdLineException(parser, "One of -mondoFile or -storeDir is required");
+            }
+            if( options.query == null && options.queriesFile == null ) {
+                throw new CmdLineException(parser, "One of -query or -queriesFile is required");
+            }
+            if( options.queriesFile != null && options.outFile == null ) {
+                throw new CmdLineException(parser, "-queriesFile requires -outFile");
+            }
+            if( options.threads < 1 ) {
+                throw new CmdLineException(parser, "-threads must be at least 1");
+            }
+
+        } catch (CmdLineException e) {
+
+            System.err.println(e.getMessage());
+            System.err.print("Arguments: ");
+            parser.printSingleLineUsage(System.err);
+            System.err.println("\n\n Options: \n");
+            parser.printUsage(System.err);
+            OntologyDaemon.exit(-1);
+
+        }
+
+        OntologyLoader.setCacheDir(options.cacheDir);
+        OntologyLoader.setLanguages(options.lang);
+
+        SimilarDiseaseSearch search;
+        if( options.storeDir != null ) {
+            OntologyStore store = OntologyStore.open(options.storeDir);
+            store.begin();
+            try {
+                search = SimilarDiseaseSearch.forMondo(store.getMondoModel());
+            } finally {
+                store.end();
+            }
+        } else {
+            search = SimilarDiseaseSearch.forMondo(OntologyLoader.loadMondo(options.mondoFile));
+        }
+
+        if( options.queriesFile != null )
+            search.searchAll(readQueries(options.queriesFile), options.k, options.outFile, options.threads);
+        else
+            System.out.print(search.format(options.query, options.k));
+
+    }
+}
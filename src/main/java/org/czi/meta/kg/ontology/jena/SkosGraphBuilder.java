@@ -0,0 +1,81 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.mem.GraphMem;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.OWL;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Append-only output graph for the META-SKOS taxonomy.
+ *
+ * The converters only ever add triples and ask whether a concept has been filled in yet (has an rdfs:label).
+ * This builder keeps the triples in a plain GraphMem, with no reasoner attached, and maintains its own
+ * table of labelled subjects so that check is a single hash lookup.
+ */
+public class SkosGraphBuilder {
+
+    static class ConceptTableGraph extends GraphMem {
+
+        Set<Node> described = new HashSet<Node>();
+
+        @Override
+        public void performAdd(Triple t) {
+            super.performAdd(t);
+            if( t.getPredicate().equals(RDFS.Nodes.label) )
+                this.described.add(t.getSubject());
+        }
+
+        @Override
+        public void performDelete(Triple t) {
+            super.performDelete(t);
+            if( t.getPredicate().equals(RDFS.Nodes.label) && !this.contains(t.getSubject(), RDFS.Nodes.label, Node.ANY) )
+                this.described.remove(t.getSubject());
+        }
+    }
+
+    ConceptTableGraph graph;
+    Model model;
+
+    public SkosGraphBuilder() {
+        this.graph = new ConceptTableGraph();
+        this.model = ModelFactory.createModelForGraph(this.graph);
+    }
+
+    public Model getModel() {
+        return this.model;
+    }
+
+    /**
+     * @return true if details for this concept have already been filled in (it has an rdfs:label).
+     */
+    public boolean isDescribed(Resource r) {
+        return this.graph.described.contains(r.asNode());
+    }
+
+    public int conceptCount() {
+        return this.graph.described.size();
+    }
+
+    /**
+     * Writes the owl:Ontology header directly as triples, the same statements OntModel.createOntology,
+     * addImport, setLabel, setComment and setVersionInfo would produce.
+     */
+    public void addOntologyHeader(String ontologyUri, String importUri, String name, String description,
+                                  String version, String lang) {
+        Node ont = NodeFactory.createURI(ontologyUri);
+        this.graph.add(Triple.create(ont, RDF.Nodes.type, OWL.Ontology.asNode()));
+        this.graph.add(Triple.create(ont, OWL.imports.asNode(), NodeFactory.createURI(importUri)));
+        this.graph.add(Triple.create(ont, RDFS.Nodes.label, NodeFactory.createLiteral(name, lang)));
+        this.graph.add(Triple.create(ont, RDFS.Nodes.comment, NodeFactory.createLiteral(description, lang)));
+        this.graph.add(Triple.create(ont, OWL.versionInfo.asNode(), NodeFactory.createLiteral(version)));
+    }
+}
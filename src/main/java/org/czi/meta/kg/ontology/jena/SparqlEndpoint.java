@@ -0,0 +1,400 @@
+package org.czi.meta.kg.ontology.jena;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.jena.query.*;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.algebra.OpVisitorBase;
+import org.apache.jena.sparql.algebra.op.OpService;
+import org.apache.jena.sparql.algebra.walker.Walker;
+import org.apache.jena.sparql.engine.http.Service;
+import org.apache.jena.sparql.expr.ExprVisitorBase;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-only SPARQL endpoint over MONDO, MeSH and META-SKOS, loaded once and kept in memory.
+ *
+ * MONDO is the default graph, so the queries of QueryMondo and friends run unchanged; all three are also
+ * named graphs (OntologyStore.MONDO_GRAPH, MESH_GRAPH, SKOS_GRAPH) for GRAPH clauses. The MONDO indexes
+ * behind meta:descendantOf and meta:inheritsSome, and the meta:textQuery index of every graph, are built
+ * at startup, so the first query is as fast as the next.
+ *
+ *   GET  /sparql?query=...            POST /sparql (application/sparql-query, or a form with query=)
+ *   GET  /status
+ *
+ * SELECT and ASK results are streamed as TSV (default), JSON, CSV or XML, picked by the format parameter
+ * (tsv|json|csv|xml) or the Accept header; CONSTRUCT and DESCRIBE stream N-Triples. Queries run on a fixed
+ * pool of worker threads (further requests wait for a free worker) and are cancelled after the timeout; a
+ * query cancelled after its first rows went out ends with a dropped connection rather than a clean end of
+ * response. Queries with SERVICE clauses are refused, so the endpoint never makes outbound requests.
+ * The graphs are never modified after loading, so queries share them without locking.
+ */
+public class SparqlEndpoint {
+
+    Dataset dataset;
+    long timeoutMs;
+    HttpServer server;
+    ExecutorService workers;
+    AtomicLong served = new AtomicLong();
+
+    public SparqlEndpoint(Dataset dataset, long timeoutMs) {
+        this.dataset = dataset;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * MONDO as the default graph and every model as a named graph.
+     */
+    public static Dataset dataset(Model mondoModel, Model meshModel, Model skosModel) {
+        Dataset dataset = DatasetFactory.create(mondoModel);
+        dataset.addNamedModel(OntologyStore.MONDO_GRAPH, mondoModel);
+        if( meshModel != null )
+            dataset.addNamedModel(OntologyStore.MESH_GRAPH, meshModel);
+        if( skosModel != null )
+            dataset.addNamedModel(OntologyStore.SKOS_GRAPH, skosModel);
+        return dataset;
+    }
+
+    public void start(InetSocketAddress address, int threads) throws IOException {
+        ReachabilityIndex.register();
+        RestrictionIndex.register();
+        LabelTextIndex.register();
+        RestrictionIndex.of(this.dataset.getDefaultModel());
+        Iterator<String> names = this.dataset.listNames();
+        while( names.hasNext() )
+            LabelTextIndex.of(this.dataset.getNamedModel(names.next()));
+
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.server = HttpServer.create(address, 0);
+        this.server.createContext("/sparql", this::query);
+        this.server.createContext("/status", this::status);
+        this.server.setExecutor(this.workers);
+        this.server.start();
+    }
+
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    public void stop() {
+        this.server.stop(0);
+        this.workers.shutdownNow();
+    }
+
+    void status(HttpExchange exchange) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"queries\" : ").append(this.served.get()).append(",\n  \"graphs\" : {");
+        Iterator<String> names = this.dataset.listNames();
+        String sep = "\n";
+        while( names.hasNext() ) {
+            String name = names.next();
+            sb.append(sep).append("    \"").append(name).append("\" : ").append(this.dataset.getNamedModel(name).size());
+            sep = ",\n";
+        }
+        sb.append("\n  }\n}\n");
+        this.reply(exchange, 200, "application/json", sb.toString());
+    }
+
+    void query(HttpExchange exchange) throws IOException {
+        long startTime = System.currentTimeMillis();
+        String failure = null;
+        try {
+            Map<String, String> params = this.params(exchange);
+            String queryString = params.get("query");
+            if( queryString == null ) {
+                this.reply(exchange, 400, "text/plain", "Missing query\n");
+                return;
+            }
+            Query query;
+            try {
+                query = QueryFactory.create(queryString);
+            } catch (QueryException e) {
+                this.reply(exchange, 400, "text/plain", e.getMessage() + "\n");
+                return;
+            }
+            if( usesService(query) ) {
+                this.reply(exchange, 400, "text/plain", "SERVICE is not allowed on this endpoint\n");
+                return;
+            }
+
+            try (QueryExecution qexec = QueryExecutionFactory.create(query, this.dataset)) {
+                qexec.getContext().set(Service.serviceAllowed, false);
+                qexec.setTimeout(this.timeoutMs, TimeUnit.MILLISECONDS);
+                String format = this.format(params.get("format"), exchange.getRequestHeaders().getFirst("Accept"));
+                if( query.isSelectType() ) {
+                    ResultSet results = qexec.execSelect();
+                    results.hasNext();   // evaluation errors and timeouts before the first row become a status
+                    OutputStream out = this.stream(exchange, contentType(format));
+                    if( format.equals("json") )
+                        ResultSetFormatter.outputAsJSON(out, results);
+                    else if( format.equals("csv") )
+                        ResultSetFormatter.outputAsCSV(out, results);
+                    else if( format.equals("xml") )
+                        ResultSetFormatter.outputAsXML(out, results);
+                    else
+                        ResultSetFormatter.outputAsTSV(out, results);
+                    out.flush();
+                } else if( query.isAskType() ) {
+                    boolean answer = qexec.execAsk();
+                    OutputStream out = this.stream(exchange, contentType(format));
+                    if( format.equals("json") )
+                        ResultSetFormatter.outputAsJSON(out, answer);
+                    else if( format.equals("csv") )
+                        ResultSetFormatter.outputAsCSV(out, answer);
+                    else if( format.equals("xml") )
+                        ResultSetFormatter.outputAsXML(out, answer);
+                    else
+                        ResultSetFormatter.outputAsTSV(out, answer);
+                    out.flush();
+                } else {
+                    Iterator<org.apache.jena.graph.Triple> triples = query.isConstructType() ?
+                            qexec.execConstructTriples() : qexec.execDescribeTriples();
+                    OutputStream out = this.stream(exchange, "application/n-triples");
+                    RDFDataMgr.writeTriples(out, triples);
+                    out.flush();
+                }
+            } catch (QueryCancelledException e) {
+                if( exchange.getResponseCode() < 0 ) {
+                    this.reply(exchange, 503, "text/plain", "Query timed out after " + this.timeoutMs + " ms\n");
+                    return;
+                }
+                failure = "timed out after " + this.timeoutMs + " ms";
+            }
+            if( failure == null ) {
+                long n = this.served.incrementAndGet();
+                System.out.println("Query " + n + " answered in " + (System.currentTimeMillis() - startTime) + " ms");
+            }
+        } catch (IOException e) {
+            System.out.println("Query aborted: " + e.getMessage());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            if( exchange.getResponseCode() < 0 )
+                this.reply(exchange, 500, "text/plain", e + "\n");
+            else
+                failure = "failed (" + e + ")";
+        } finally {
+            if( failure == null )
+                exchange.close();
+        }
+
+        //
+        // The 200 and part of the rows are already out. Leaving the handler with an exception, without closing
+        // the exchange, makes the server drop the connection before the final chunk, so the client sees a
+        // truncated transfer instead of a shorter result that looks complete.
+        //
+        if( failure != null ) {
+            System.out.println("Query " + failure + " with its response under way, dropping the connection");
+            throw new IOException("Query " + failure);
+        }
+    }
+
+    //
+    // SERVICE clauses, anywhere in the query (subqueries and EXISTS included), would have the endpoint send
+    // requests to whatever URL a client names.
+    //
+    static boolean usesService(Query query) {
+        boolean[] found = {false};
+        Walker.walk(Algebra.compile(query), new OpVisitorBase() {
+            @Override
+            public void visit(OpService op) {
+                found[0] = true;
+            }
+        }, new ExprVisitorBase());
+        return found[0];
+    }
+
+
+    String format(String format, String accept) {
+        if( format != null )
+            return format.toLowerCase(Locale.ROOT);
+        if( accept != null ) {
+            if( accept.contains("json") )
+                return "json";
+            if( accept.contains("csv") )
+                return "csv";
+            if( accept.contains("xml") )
+                return "xml";
+        }
+        return "tsv";
+    }
+
+    static String contentType(String format) {
+        switch( format ) {
+            case "json":
+                return "application/sparql-results+json";
+            case "csv":
+                return "text/csv";
+            case "xml":
+                return "application/sparql-results+xml";
+            default:
+                return "text/tab-separated-values";
+        }
+    }
+
+    private OutputStream stream(HttpExchange exchange, String contentType) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);   // chunked
+        return new BufferedOutputStream(exchange.getResponseBody(), 1 << 16);
+    }
+
+    private void reply(HttpExchange exchange, int status, String contentType, String body) {
+        try {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        } catch (IOException e) {
+            // headers already sent or client gone; nothing left to tell it
+        }
+    }
+
+    //
+    // Parameters from the URL and, for POST, from a form or a raw application/sparql-query body.
+    //
+    Map<String, String> params(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+        if( exchange.getRequestMethod().equalsIgnoreCase("POST") ) {
+            String body = readBody(exchange.getRequestBody());
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if( contentType != null && contentType.startsWith("application/sparql-query") )
+                params.put("query", body);
+            else
+                parseForm(body, params);
+        }
+        return params;
+    }
+
+    static void parseForm(String form, Map<String, String> params) throws UnsupportedEncodingException {
+        if( form == null || form.isEmpty() )
+            return;
+        for( String pair : form.split("&") ) {
+            int eq = pair.indexOf('=');
+            if( eq < 0 )
+                continue;
+            params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+    }
+
+    static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while( (n = in.read(buf)) > 0 )
+            out.write(buf, 0, n);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    public static class Options {
+
+        @Option(name = "-mondoFile", usage = "MONDO File", required = false, metaVar = "MONDO-FILE")
+        public File mondoFile;
+
+        @Option(name = "-meshFile", usage = "Input Mesh File", required = false, metaVar = "MESH-FILE")
+        public File meshFile;
+
+        @Option(name = "-skosFile", usage = "META-SKOS File", required = false, metaVar = "SKOS-FILE")
+        public File skosFile;
+
+        @Option(name = "-storeDir", usage = "TDB2 Store Directory (instead of the files), copied into memory", required = false, metaVar = "STORE-DIR")
+        public File storeDir;
+
+        @Option(name = "-cacheDir", usage = "Parsed Snapshot Cache Directory", required = false, metaVar = "CACHE-DIR")
+        public File cacheDir;
+
+        @Option(name = "-lang", usage = "Keep only MONDO literals in these languages (e.g. en)", required = false, metaVar = "LANGS")
+        public String lang;
+
+        @Option(name = "-host", usage = "Address to listen on (default 127.0.0.1)", required = false, metaVar = "HOST")
+        public String host = "127.0.0.1";
+
+        @Option(name = "-port", usage = "Port (default 3030)", required = false, metaVar = "PORT")
+        public int port = 3030;
+
+        @Option(name = "-threads", usage = "Worker Threads (default: all cores)", required = false, metaVar = "THREADS")
+        public int threads = Runtime.getRuntime().availableProcessors();
+
+        @Option(name = "-timeout", usage = "Query Timeout in ms (default 60000)", required = false, metaVar = "MS")
+        public long timeout = 60000;
+
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        long startTime = System.currentTimeMillis();
+
+        Options options = new Options();
+
+        CmdLineParser parser = new CmdLineParser(options);
+
+        try {
+
+            parser.parseArgument(args);
+            if( options.mondoFile == null && options.storeDir == null ) {
+                throw new CmdLineException(parser, "One of -mondoFile or -storeDir is required");
+            }
+
+        } catch (CmdLineException e) {
+
+            System.err.println(e.getMessage());
+            System.err.print("Arguments: ");
+            parser.printSingleLineUsage(System.err);
+            System.err.println("\n\n Options: \n");
+            parser.printUsage(System.err);
+            System.exit(-1);
+
+        }
+
+        OntologyLoader.setCacheDir(options.cacheDir);
+        OntologyLoader.setLanguages(options.lang);
+
+        Model mondoModel;
+        Model meshModel = null;
+        Model skosModel = null;
+        if( options.storeDir != null ) {
+            OntologyStore store = OntologyStore.open(options.storeDir);
+            store.begin();
+            try {
+                mondoModel = ModelFactory.createDefaultModel().add(store.getMondoModel());
+                meshModel = ModelFactory.createDefaultModel().add(store.getMeshModel());
+                skosModel = ModelFactory.createDefaultModel().add(store.getSkosModel());
+            } finally {
+                store.end();
+            }
+        } else {
+            mondoModel = OntologyLoader.loadMondo(options.mondoFile);
+            if( options.meshFile != null )
+                meshModel = OntologyLoader.loadMesh(options.meshFile);
+            if( options.skosFile != null )
+                skosModel = RDFDataMgr.loadModel(options.skosFile.getPath(), Lang.TTL);
+        }
+
+        SparqlEndpoint endpoint = new SparqlEndpoint(dataset(mondoModel, meshModel, skosModel), options.timeout);
+        endpoint.start(new InetSocketAddress(options.host, options.port), options.threads);
+        Runtime.getRuntime().addShutdownHook(new Thread(endpoint::stop));
+        System.out.println("Serving SPARQL at http://" + options.host + ":" + endpoint.getPort() + "/sparql with " +
+                options.threads + " workers, ready in " + (System.currentTimeMillis() - startTime) + " ms");
+
+    }
+}
@@ -0,0 +1,230 @@
+package org.czi.meta.kg.ontology.jena;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Each distinct string stored once, as UTF-8 in large byte arenas, and named by an int handle.
+ *
+ * Handles are dense (0, 1, 2, ... in order of first interning), so callers can keep per-string data in
+ * plain arrays indexed by handle. HTTP IRIs are split at their last '/' or '#': the namespace goes into a
+ * small prefix table and only the local part is stored, so the tens of thousands of
+ * http://purl.obolibrary.org/obo/MONDO_... or http://id.nlm.nih.gov/mesh/... IRIs cost a few bytes each.
+ * An entry is (varint prefix, varint length, bytes); lookups hash and compare the encoded bytes and do not
+ * build a String.
+ *
+ * intern() is not thread safe; once a pool is filled, get() and find() can be called from any number of
+ * threads.
+ */
+public class StringPool {
+
+    public static final int ARENA_BITS = 20;    // 1 MB arenas
+    public static final int MAX_ARENAS = 1 << (31 - ARENA_BITS);
+
+    List<byte[]> arenas = new ArrayList<byte[]>();
+    int used = 1 << ARENA_BITS;                 // bytes used in the last arena (full: there is none yet)
+    int[] locations = new int[1024];            // handle -> arena << ARENA_BITS | offset
+    int[] hashes = new int[1024];
+    int size = 0;
+    int[] slots = new int[2048];                // handle + 1, 0 when free
+    List<String> prefixes = new ArrayList<String>();
+    Map<String, Integer> prefixIds = new HashMap<String, Integer>();
+
+    public StringPool() {
+        this.prefixes.add("");
+        this.prefixIds.put("", 0);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return bytes held by the arenas
+     */
+    public long byteSize() {
+        return (long) this.arenas.size() << ARENA_BITS;
+    }
+
+    /**
+     * @return the handle of s, adding it if it is new
+     */
+    public int intern(String s) {
+        int prefix = this.prefixId(s, true);
+        byte[] suffix = s.substring(this.prefixes.get(prefix).length()).getBytes(StandardCharsets.UTF_8);
+        int hash = hash(prefix, suffix);
+        int slot = this.findSlot(hash, prefix, suffix);
+        if( this.slots[slot] != 0 )
+            return this.slots[slot] - 1;
+
+        int handle = this.append(prefix, suffix, hash);
+        this.slots[slot] = handle + 1;
+        if( 4 * this.size > 3 * this.slots.length )
+            this.rehash();
+        return handle;
+    }
+
+    /**
+     * @return the handle of s, or -1 if it was never interned
+     */
+    public int find(String s) {
+        int prefix = this.prefixId(s, false);
+        if( prefix < 0 )
+            return -1;
+        byte[] suffix = s.substring(this.prefixes.get(prefix).length()).getBytes(StandardCharsets.UTF_8);
+        return this.slots[this.findSlot(hash(prefix, suffix), prefix, suffix)] - 1;
+    }
+
+    public String get(int handle) {
+        if( handle < 0 || handle >= this.size )
+            throw new IndexOutOfBoundsException("No string " + handle + " in a pool of " + this.size);
+        long header = this.header(handle);
+        int prefix = (int) (header >>> 32);
+        int length = (int) header;
+        int location = this.locations[handle];
+        int pos = (location & ((1 << ARENA_BITS) - 1)) + varintSize(prefix) + varintSize(length);
+        return this.prefixes.get(prefix) + new String(this.arenas.get(location >>> ARENA_BITS), pos, length,
+                StandardCharsets.UTF_8);
+    }
+
+    //
+    // Namespace of an http(s) IRI, up to and including its last '/' or '#'; "" for anything else.
+    //
+    static int namespaceEnd(String s) {
+        if( !s.startsWith("http://") && !s.startsWith("https://") )
+            return 0;
+        return Math.max(s.lastIndexOf('/'), s.lastIndexOf('#')) + 1;
+    }
+
+    private int prefixId(String s, boolean add) {
+        int end = namespaceEnd(s);
+        if( end == 0 )
+            return 0;
+        String ns = s.substring(0, end);
+        Integer id = this.prefixIds.get(ns);
+        if( id == null ) {
+            if( !add )
+                return -1;
+            id = this.prefixes.size();
+            this.prefixes.add(ns);
+            this.prefixIds.put(ns, id);
+        }
+        return id;
+    }
+
+    static int hash(int prefix, byte[] suffix) {
+        int h = 31 * prefix + Arrays.hashCode(suffix);
+        return h ^ (h >>> 16);
+    }
+
+    private int findSlot(int hash, int prefix, byte[] suffix) {
+        int mask = this.slots.length - 1;
+        int slot = hash & mask;
+        while( this.slots[slot] != 0 ) {
+            int handle = this.slots[slot] - 1;
+            if( this.hashes[handle] == hash && this.matches(handle, prefix, suffix) )
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean matches(int handle, int prefix, byte[] suffix) {
+        if( this.header(handle) != ((long) prefix << 32 | suffix.length) )
+            return false;
+        int location = this.locations[handle];
+        byte[] arena = this.arenas.get(location >>> ARENA_BITS);
+        int pos = (location & ((1 << ARENA_BITS) - 1)) + varintSize(prefix) + varintSize(suffix.length);
+        for( int i = 0; i < suffix.length; i++ ) {
+            if( arena[pos + i] != suffix[i] )
+                return false;
+        }
+        return true;
+    }
+
+    //
+    // Decodes the (prefix, length) header of handle as prefix << 32 | length. Nothing is kept on the pool,
+    // so readers on several threads do not interfere.
+    //
+    private long header(int handle) {
+        int location = this.locations[handle];
+        byte[] arena = this.arenas.get(location >>> ARENA_BITS);
+        int pos = location & ((1 << ARENA_BITS) - 1);
+        int prefix = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = arena[pos++];
+            prefix |= (b & 0x7F) << shift;
+            shift += 7;
+        } while( b < 0 );
+        int length = 0;
+        shift = 0;
+        do {
+            b = arena[pos++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while( b < 0 );
+        return (long) prefix << 32 | length;
+    }
+
+    private int append(int prefix, byte[] suffix, int hash) {
+        int need = varintSize(prefix) + varintSize(suffix.length) + suffix.length;
+        int arenaSize = 1 << ARENA_BITS;
+        if( need > arenaSize )
+            throw new IllegalArgumentException("String of " + suffix.length + " bytes does not fit an arena");
+        if( this.used + need > arenaSize ) {
+            if( this.arenas.size() == MAX_ARENAS )
+                throw new IllegalStateException("String pool full: " + MAX_ARENAS + " arenas of " + arenaSize + " bytes");
+            this.arenas.add(new byte[arenaSize]);
+            this.used = 0;
+        }
+        int arenaIndex = this.arenas.size() - 1;
+        byte[] arena = this.arenas.get(arenaIndex);
+        int location = arenaIndex << ARENA_BITS | this.used;
+        int pos = putVarint(arena, this.used, prefix);
+        pos = putVarint(arena, pos, suffix.length);
+        System.arraycopy(suffix, 0, arena, pos, suffix.length);
+        this.used = pos + suffix.length;
+
+        if( this.size == this.locations.length ) {
+            this.locations = Arrays.copyOf(this.locations, 2 * this.size);
+            this.hashes = Arrays.copyOf(this.hashes, 2 * this.size);
+        }
+        this.locations[this.size] = location;
+        this.hashes[this.size] = hash;
+        return this.size++;
+    }
+
+    private void rehash() {
+        int[] slots = new int[2 * this.slots.length];
+        int mask = slots.length - 1;
+        for( int handle = 0; handle < this.size; handle++ ) {
+            int slot = this.hashes[handle] & mask;
+            while( slots[slot] != 0 )
+                slot = (slot + 1) & mask;
+            slots[slot] = handle + 1;
+        }
+        this.slots = slots;
+    }
+
+    static int varintSize(int v) {
+        int n = 1;
+        while( (v >>>= 7) != 0 )
+            n++;
+        return n;
+    }
+
+    static int putVarint(byte[] buf, int pos, int v) {
+        while( (v & ~0x7F) != 0 ) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return pos;
+    }
+}
@@ -0,0 +1,104 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.vocabulary.OWL;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+
+import java.util.*;
+
+/**
+ * Whitelist of predicates, rdf:type objects and literal languages applied to a parser stream, so that only
+ * the triples the tools actually query are ever materialized.
+ *
+ * Restrictions survive intact because owl:onProperty, owl:someValuesFrom and rdf:type owl:Restriction are
+ * part of the MONDO whitelist, while axiom annotations (owl:Axiom, owl:annotatedSource, ...) are dropped.
+ */
+public class TripleProjection {
+
+    public static String SKOS_URI = "http://www.w3.org/2004/02/skos/core#";
+    public static String OBO_URI = "http://purl.obolibrary.org/obo/";
+    public static String OBOINOWL_URI = "http://www.geneontology.org/formats/oboInOwl#";
+
+    public static TripleProjection MONDO = new TripleProjection(
+            Arrays.asList(RDFS.subClassOf.asNode(),
+                    RDFS.label.asNode(),
+                    NodeFactory.createURI(SKOS_URI + "exactMatch"),
+                    NodeFactory.createURI(OBOINOWL_URI + "hasExactSynonym"),
+                    NodeFactory.createURI(OBO_URI + "IAO_0000115"),
+                    OWL.onProperty.asNode(),
+                    OWL.someValuesFrom.asNode()),
+            Arrays.asList(OWL.Class.asNode(), OWL.Restriction.asNode()),
+            Collections.<String>emptyList());
+
+    Set<Node> predicates;
+    Set<Node> types;
+    Set<String> languages;
+
+    public TripleProjection(Collection<Node> predicates, Collection<Node> types, Collection<String> languages) {
+        this.predicates = new HashSet<Node>(predicates);
+        this.types = new HashSet<Node>(types);
+        this.languages = new HashSet<String>();
+        for( String l : languages )
+            this.languages.add(l.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return a copy of this projection that also drops language-tagged literals not in langs.
+     * Literals without a language tag are always kept.
+     */
+    public TripleProjection withLanguages(String... langs) {
+        return new TripleProjection(this.predicates, this.types, Arrays.asList(langs));
+    }
+
+    public boolean accept(Triple t) {
+        Node p = t.getPredicate();
+        if( p.equals(RDF.Nodes.type) )
+            return this.types.contains(t.getObject());
+        if( !this.predicates.contains(p) )
+            return false;
+        Node o = t.getObject();
+        if( !this.languages.isEmpty() && o.isLiteral() ) {
+            String lang = o.getLiteralLanguage();
+            return lang.isEmpty() || this.languages.contains(lang.toLowerCase(Locale.ROOT));
+        }
+        return true;
+    }
+
+    public StreamRDF filter(StreamRDF dest) {
+        return new StreamRDFWrapper(dest) {
+            @Override
+            public void triple(Triple triple) {
+                if( accept(triple) )
+                    super.triple(triple);
+            }
+
+            @Override
+            public void quad(Quad quad) {
+                if( accept(quad.asTriple()) )
+                    super.quad(quad);
+            }
+        };
+    }
+
+    /**
+     * @return a stable identifier of this projection, used to keep snapshots of differently projected
+     * graphs apart in the cache.
+     */
+    public String id() {
+        List<String> parts = new ArrayList<String>();
+        for( Node n : this.predicates )
+            parts.add("p:" + n.getURI());
+        for( Node n : this.types )
+            parts.add("t:" + n.getURI());
+        for( String l : this.languages )
+            parts.add("l:" + l);
+        Collections.sort(parts);
+        return DiskCache.sha256(String.join("\n", parts)).substring(0, 12);
+    }
+}
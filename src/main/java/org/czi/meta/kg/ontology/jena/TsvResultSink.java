@@ -0,0 +1,92 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.RDFNode;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams a SPARQL ResultSet to a TSV file row by row.
+ *
+ * Columns follow the projected variables of the query; the header is written first, so an empty result
+ * gives a header-only file. Values are written as RDFNode.toString() (IRIs as is, literals with their
+ * language tag or datatype), unbound values as empty cells. Nothing is kept per row, so memory use does
+ * not depend on the size of the result.
+ */
+public class TsvResultSink implements Closeable {
+
+    Writer out;
+    long rows = 0;
+
+    public TsvResultSink(File file, boolean gzip) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        if( gzip )
+            os = new GZIPOutputStream(os, 1 << 16);
+        this.out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    /**
+     * @return the file the rows for stem + name go to, with a .gz suffix when compressed
+     */
+    public static File fileFor(String stem, String name, boolean gzip) {
+        return new File(stem + name + (gzip ? ".tsv.gz" : ".tsv"));
+    }
+
+    /**
+     * Writes the header and every row of results, then closes results if they come from the result cache.
+     * @return number of rows written
+     */
+    public long write(ResultSet results) throws IOException {
+        try {
+            List<String> vars = results.getResultVars();
+            this.writeHeader(vars);
+            while( results.hasNext() ) {
+                QuerySolution soln = results.nextSolution();
+                for( int i = 0; i < vars.size(); i++ ) {
+                    if( i > 0 )
+                        this.out.write('\t');
+                    RDFNode node = soln.get(vars.get(i));
+                    if( node != null )
+                        this.out.write(node.toString());
+                }
+                this.out.write('\n');
+                this.rows++;
+            }
+        } finally {
+            QueryResultCache.close(results);
+        }
+        return this.rows;
+    }
+
+    public void writeHeader(List<String> columns) throws IOException {
+        this.out.write(String.join("\t", columns));
+        this.out.write('\n');
+    }
+
+    /**
+     * Writes one row of already formatted values (null for an empty cell).
+     */
+    public void writeRow(String... values) throws IOException {
+        for( int i = 0; i < values.length; i++ ) {
+            if( i > 0 )
+                this.out.write('\t');
+            if( values[i] != null )
+                this.out.write(values[i]);
+        }
+        this.out.write('\n');
+        this.rows++;
+    }
+
+    public long getRows() {
+        return this.rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.out.close();
+    }
+}
@@ -0,0 +1,439 @@
+package org.czi.meta.kg.ontology.jena;
+
+import org.apache.jena.atlas.json.JSON;
+import org.apache.jena.atlas.json.JsonObject;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Cross-reference profile of the labelled MONDO diseases, from a single scan of skos:exactMatch.
+ *
+ * Every xref is split into namespace and local id (at the last '/', '#' or ':', then after a '_' in the
+ * local part, so obo/DOID_863 falls in "http://purl.obolibrary.org/obo/DOID_"). Namespaces are kept in a
+ * character trie; the first xref of a namespace classifies it against the sources (a source matches a
+ * namespace that contains its name, like the old regex FILTERs did) and every later xref only walks the
+ * trie. The result holds, per source and per namespace, the set of diseases and the number of xrefs, plus
+ * the rare disease set, so counts and intersections such as "rare AND has umls" need no further queries.
+ *
+ * Unlike regex(str(?xref), "(umls)"), a source name that only occurs in the local id of an xref does not
+ * match; -verify compares the profile with the SPARQL counts.
+ */
+public class XrefProfiler {
+
+    public static String OBO_URI = "http://purl.obolibrary.org/obo/";
+    public static String[] SOURCES = new String[] { "umls", "mesh", "snomedct", "DOID", "Orphanet" };
+
+    static Node EXACT_MATCH = NodeFactory.createURI(DiseaseTableExtractor.SKOS_URI + "exactMatch");
+
+    //
+    // Character trie over namespaces; each namespace ends at a node holding its index.
+    //
+    static final class Trie {
+        char[] keys = new char[0];
+        Trie[] next = new Trie[0];
+        int ns = -1;
+
+        Trie child(char c, boolean create) {
+            for( int i = 0; i < this.keys.length; i++ )
+                if( this.keys[i] == c )
+                    return this.next[i];
+            if( !create )
+                return null;
+            Trie t = new Trie();
+            this.keys = Arrays.copyOf(this.keys, this.keys.length + 1);
+            this.next = Arrays.copyOf(this.next, this.next.length + 1);
+            this.keys[this.keys.length - 1] = c;
+            this.next[this.next.length - 1] = t;
+            return t;
+        }
+    }
+
+    String[] sources;
+    HierarchyIndex hierarchy;
+    BitSet diseases;
+    BitSet rare;
+    BitSet[] sourceClasses;
+    long[] sourceXrefs;
+
+    Trie trie = new Trie();
+    List<String> namespaces = new ArrayList<String>();
+    List<Integer> namespaceSources = new ArrayList<Integer>();  // bit j set when source j matches
+    List<BitSet> namespaceClasses = new ArrayList<BitSet>();
+    List<long[]> namespaceXrefs = new ArrayList<long[]>();
+
+    XrefProfiler(HierarchyIndex hierarchy, BitSet diseases, BitSet rare, String[] sources) {
+        if( sources.length > 31 )
+            throw new IllegalArgumentException("At most 31 sources can be profiled at once");
+        this.hierarchy = hierarchy;
+        this.diseases = diseases;
+        this.rare = rare;
+        this.sources = sources;
+        this.sourceClasses = new BitSet[sources.length];
+        for( int j = 0; j < sources.length; j++ )
+            this.sourceClasses[j] = new BitSet(hierarchy.size());
+        this.sourceXrefs = new long[sources.length];
+    }
+
+    public static XrefProfiler profile(Model mondoModel) throws IOException {
+        return profile(mondoModel, SOURCES);
+    }
+
+    /**
+     * Profiles the labelled owl:Class descendants of MONDO_0000001.
+     */
+    public static XrefProfiler profile(Model mondoModel, String[] sources) throws IOException {
+        long startTime = System.currentTimeMillis();
+        ReachabilityIndex reach = ReachabilityIndex.of(mondoModel);
+        HierarchyIndex h = reach.getHierarchy();
+        BitSet diseases = SiblingSets.labelledClassesBelow(mondoModel, reach, OBO_URI + "MONDO_0000001");
+        BitSet rare = new DiseaseTableExtractor(mondoModel).rareClasses();
+        rare.and(diseases);
+
+        XrefProfiler p = new XrefProfiler(h, diseases, rare, sources);
+        long xrefs = p.scan(mondoModel.getGraph());
+        System.err.println("Profiled " + xrefs + " xrefs of " + diseases.cardinality() + " diseases in " +
+                p.namespaces.size() + " namespaces in " + (System.currentTimeMillis() - startTime) + " ms");
+        return p;
+    }
+
+    long scan(Graph graph) {
+        long total = 0;
+        ExtendedIterator<Triple> it = graph.find(Node.ANY, EXACT_MATCH, Node.ANY);
+        while( it.hasNext() ) {
+            Triple t = it.next();
+            Node s = t.getSubject();
+            Node o = t.getObject();
+            if( !s.isURI() || o.isBlank() )
+                continue;
+            int d = this.hierarchy.id(s.getURI());
+            if( d < 0 || !this.diseases.get(d) )
+                continue;
+            String xref = o.isURI() ? o.getURI() : o.getLiteralLexicalForm();
+            int ns = this.namespace(xref);
+            this.namespaceClasses.get(ns).set(d);
+            this.namespaceXrefs.get(ns)[0]++;
+            int mask = this.namespaceSources.get(ns);
+            for( int j = 0; j < this.sources.length; j++ ) {
+                if( (mask & (1 << j)) != 0 ) {
+                    this.sourceClasses[j].set(d);
+                    this.sourceXrefs[j]++;
+                }
+            }
+            total++;
+        }
+        return total;
+    }
+
+    //
+    // Index of the namespace of xref, registering (and classifying) it on first sight.
+    //
+    int namespace(String xref) {
+        int end = namespaceEnd(xref);
+        Trie t = this.trie;
+        for( int i = 0; i < end; i++ )
+            t = t.child(xref.charAt(i), true);
+        if( t.ns >= 0 )
+            return t.ns;
+
+        String ns = xref.substring(0, end);
+        int mask = 0;
+        for( int j = 0; j < this.sources.length; j++ )
+            if( ns.contains(this.sources[j]) )
+                mask |= 1 << j;
+        t.ns = this.namespaces.size();
+        this.namespaces.add(ns);
+        this.namespaceSources.add(mask);
+        this.namespaceClasses.add(new BitSet(this.hierarchy.size()));
+        this.namespaceXrefs.add(new long[1]);
+        return t.ns;
+    }
+
+    static int namespaceEnd(String xref) {
+        int end = Math.max(xref.lastIndexOf('/'), Math.max(xref.lastIndexOf('#'), xref.lastIndexOf(':'))) + 1;
+        int underscore = xref.indexOf('_', end);
+        if( underscore >= 0 && underscore < xref.length() - 1 )
+            end = underscore + 1;
+        return end;
+    }
+
+    public String[] getSources() {
+        return this.sources;
+    }
+
+    public BitSet getDiseases() {
+        return this.diseases;
+    }
+
+    public BitSet getRare() {
+        return this.rare;
+    }
+
+    /**
+     * @return the diseases with an xref from source (do not modify)
+     */
+    public BitSet getClasses(String source) {
+        return this.sourceClasses[this.sourceIndex(source)];
+    }
+
+    public int count(String source) {
+        return this.getClasses(source).cardinality();
+    }
+
+    public int rareCount(String source) {
+        return intersection(this.rare, this.getClasses(source));
+    }
+
+    private int sourceIndex(String source) {
+        for( int j = 0; j < this.sources.length; j++ )
+            if( this.sources[j].equals(source) )
+                return j;
+        throw new IllegalArgumentException("Source " + source + " was not profiled");
+    }
+
+    static int intersection(BitSet a, BitSet b) {
+        BitSet c = (BitSet) a.clone();
+        c.and(b);
+        return c.cardinality();
+    }
+
+    /**
+     * One row per set: set, classes, xrefs. Sets are diseases, rare, source:S, rare&source:S,
+     * source:S&source:T and namespace:NS.
+     */
+    public void writeTsv(Writer w) throws IOException {
+        w.write("set\tclasses\txrefs\n");
+        w.write("diseases\t" + this.diseases.cardinality() + "\t\n");
+        w.write("rare\t" + this.rare.cardinality() + "\t\n");
+        for( int j = 0; j < this.sources.length; j++ )
+            w.write("source:" + this.sources[j] + "\t" + this.sourceClasses[j].cardinality() + "\t" +
+                    this.sourceXrefs[j] + "\n");
+        for( int j = 0; j < this.sources.length; j++ )
+            w.write("rare&source:" + this.sources[j] + "\t" + intersection(this.rare, this.sourceClasses[j]) + "\t\n");
+        for( int j = 0; j < this.sources.length; j++ )
+            for( int k = j + 1; k < this.sources.length; k++ )
+                w.write("source:" + this.sources[j] + "&source:" + this.sources[k] + "\t" +
+                        intersection(this.sourceClasses[j], this.sourceClasses[k]) + "\t\n");
+        for( int n = 0; n < this.namespaces.size(); n++ )
+            w.write("namespace:" + this.namespaces.get(n) + "\t" + this.namespaceClasses.get(n).cardinality() + "\t" +
+                    this.namespaceXrefs.get(n)[0] + "\n");
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.put("diseases", this.diseases.cardinality());
+        json.put("rare", this.rare.cardinality());
+
+        JsonObject sources = new JsonObject();
+        for( int j = 0; j < this.sources.length; j++ ) {
+            JsonObject s = new JsonObject();
+            s.put("classes", this.sourceClasses[j].cardinality());
+            s.put("xrefs", this.sourceXrefs[j]);
+            s.put("rare", intersection(this.rare, this.sourceClasses[j]));
+            JsonObject with = new JsonObject();
+            for( int k = 0; k < this.sources.length; k++ )
+                if( k != j )
+                    with.put(this.sources[k], intersection(this.sourceClasses[j], this.sourceClasses[k]));
+            s.put("with", with);
+            sources.put(this.sources[j], s);
+        }
+        json.put("sources", sources);
+
+        JsonObject namespaces = new JsonObject();
+        for( int n = 0; n < this.namespaces.size(); n++ ) {
+            JsonObject ns = new JsonObject();
+            ns.put("classes", this.namespaceClasses.get(n).cardinality());
+            ns.put("xrefs", this.namespaceXrefs.get(n)[0]);
+            StringBuilder matched = new StringBuilder();
+            for( int j = 0; j < this.sources.length; j++ )
+                if( (this.namespaceSources.get(n) & (1 << j)) != 0 )
+                    matched.append(matched.length() > 0 ? "," : "").append(this.sources[j]);
+            ns.put("sources", matched.toString());
+            namespaces.put(this.namespaces.get(n), ns);
+        }
+        json.put("namespaces", namespaces);
+        return json;
+    }
+
+    /**
+     * One row per disease: mondo_id, sources (comma separated), rare.
+     */
+    public void writeMembers(Writer w) throws IOException {
+        w.write("mondo_id\tsources\trare\n");
+        for( int d = this.diseases.nextSetBit(0); d >= 0; d = this.diseases.nextSetBit(d + 1) ) {
+            StringBuilder matched = new StringBuilder();
+            for( int j = 0; j < this.sources.length; j++ )
+                if( this.sourceClasses[j].get(d) )
+                    matched.append(matched.length() > 0 ? "," : "").append(this.sources[j]);
+            w.write(this.hierarchy.iri(d) + "\t" + matched + "\t" + this.rare.get(d) + "\n");
+        }
+    }
+
+    /**
+     * Checks the profile against the SPARQL counts (regex FILTERs) it replaces, listing the comparison on
+     * stderr.
+     * @return true if every count matches
+     */
+    public boolean verify(Model mondoModel) throws IOException {
+        Writer w = new OutputStreamWriter(System.err, StandardCharsets.UTF_8);
+        boolean ok = this.verify(mondoModel, w);
+        w.flush();
+        return ok;
+    }
+
+    /**
+     * Writes one row per checked set to w: set, profiled, queried (and DIFFERENT when they do not match).
+     * @return true if every count matches
+     */
+    public boolean verify(Model mondoModel, Writer w) throws IOException {
+        w.write("set\tprofiled\tqueried\n");
+        boolean ok = true;
+        ok &= check(w, "diseases", this.diseases.cardinality(),
+                QueryRegistry.get("mondo-diseases").resources(mondoModel, "d", null).size());
+        ok &= check(w, "rare", this.rare.cardinality(),
+                QueryRegistry.get("mondo-rare-diseases").resources(mondoModel, "d", null).size());
+        for( int j = 0; j < this.sources.length; j++ ) {
+            String s = this.sources[j];
+            ok &= check(w, "source:" + s, this.sourceClasses[j].cardinality(),
+                    QueryRegistry.get("mondo-diseases-with-xref").resources(mondoModel, "d",
+                            QueryRegistry.params("namespace", mondoModel.createLiteral("(" + s + ")"))).size());
+            ok &= check(w, "rare&source:" + s, intersection(this.rare, this.sourceClasses[j]),
+                    QueryRegistry.get("mondo-rare-diseases-with-xref").resources(mondoModel, "d",
+                            QueryRegistry.params("namespace", mondoModel.createLiteral("(" + s + ")"))).size());
+        }
+        return ok;
+    }
+
+    private static boolean check(Writer w, String set, int profiled, int queried) throws IOException {
+        w.write(set + "\t" + profiled + "\t" + queried + (profiled == queried ? "" : "\tDIFFERENT") + "\n");
+        return profiled == queried;
+    }
+
+    public static class Options {
+
+        @Option(name = "-mondoFile", usage = "MONDO File", required = false, metaVar = "MONDO-FILE")
+        public File mondoFile;
+
+        @Option(name = "-storeDir", usage = "TDB2 Store Directory (instead of -mondoFile)", required = false, metaVar = "STORE-DIR")
+        public File storeDir;
+
+        @Option(name = "-cacheDir", usage = "Parsed Snapshot Cache Directory", required = false, metaVar = "CACHE-DIR")
+        public File cacheDir;
+
+        @Option(name = "-lang", usage = "Keep only MONDO literals in these languages (e.g. en)", required = false, metaVar = "LANGS")
+        public String lang;
+
+        @Option(name = "-sources", usage = "Comma separated Xref Sources (default umls,mesh,snomedct,DOID,Orphanet)", required = false, metaVar = "SOURCES")
+        public String sources;
+
+        @Option(name = "-jsonFile", usage = "JSON Report", required = false, metaVar = "JSON-FILE")
+        public File jsonFile;
+
+        @Option(name = "-tsvFile", usage = "TSV Report", required = false, metaVar = "TSV-FILE")
+        public File tsvFile;
+
+        @Option(name = "-membersFile", usage = "Per Disease Sources TSV", required = false, metaVar = "MEMBERS-FILE")
+        public File membersFile;
+
+        @Option(name = "-verify", usage = "Compare the profile with the SPARQL counts", required = false)
+        public boolean verify = false;
+
+        @Option(name = "-verifyFile", usage = "With -verify, write the comparison TSV here (default stderr)", required = false, metaVar = "VERIFY-FILE")
+        public File verifyFile;
+
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        Options options = new Options();
+
+        CmdLineParser parser = new CmdLineParser(options);
+
+        try {
+
+            parser.parseArgument(args);
+            if( options.mondoFile == null && options.storeDir == null ) {
+                throw new CmdLineException(parser, "One of -mondoFile or -storeDir is required");
+            }
+
+        } catch (CmdLineException e) {
+
+            System.err.println(e.getMessage());
+            System.err.print("Arguments: ");
+            parser.printSingleLineUsage(System.err);
+            System.err.println("\n\n Options: \n");
+            parser.printUsage(System.err);
+            OntologyDaemon.exit(-1);
+
+        }
+
+        OntologyLoader.setCacheDir(options.cacheDir);
+        OntologyLoader.setLanguages(options.lang);
+
+        String[] sources = options.sources == null ? SOURCES : options.sources.split(",");
+        OntologyStore store = null;
+        Model mondoModel;
+        if( options.storeDir != null ) {
+            store = OntologyStore.open(options.storeDir);
+            store.begin();
+            mondoModel = store.getMondoModel();
+        } else {
+            mondoModel = OntologyLoader.loadMondo(options.mondoFile);
+        }
+
+        boolean ok = true;
+        try {
+            XrefProfiler p = XrefProfiler.profile(mondoModel, sources);
+            if( options.tsvFile != null ) {
+                try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(options.tsvFile),
+                        StandardCharsets.UTF_8))) {
+                    p.writeTsv(w);
+                }
+            }
+            if( options.jsonFile != null ) {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(options.jsonFile))) {
+                    JSON.write(out, p.toJson());
+                }
+            }
+            if( options.membersFile != null ) {
+                try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(options.membersFile),
+                        StandardCharsets.UTF_8))) {
+                    p.writeMembers(w);
+                }
+            }
+            if( options.tsvFile == null && options.jsonFile == null && options.membersFile == null ) {
+                Writer w = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+                p.writeTsv(w);
+                w.flush();
+            }
+            if( options.verify && options.verifyFile != null ) {
+                try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(options.verifyFile),
+                        StandardCharsets.UTF_8))) {
+                    ok = p.verify(mondoModel, w);
+                }
+            } else if( options.verify ) {
+                ok = p.verify(mondoModel);
+            }
+        } finally {
+            if( store != null )
+                store.end();
+        }
+        if( !ok )
+            OntologyDaemon.exit(1);
+
+    }
+}